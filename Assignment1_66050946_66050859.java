@@ -5,42 +5,119 @@ Assignment: WHAT IF I REBORNED
 
 Algorithms implemented :
 - Lines: Bresenham 
-- Curves: Quadratic Bézier via De Casteljau sampling
+- Curves: quadratic & cubic Bézier, adaptively flattened by forward differencing (cached per shape)
 - Circles/Ellipses: Midpoint circle & midpoint ellipse
 - Polygon fill: Scanline algorithm
-- Alpha compositing (premultiplied) for motion blur & polish
+- Thick strokes: capsule/polygon pieces filled once per row (round or butt caps, round or bevel joins)
+- Alpha compositing (source-over into opaque or premultiplied framebuffers) for motion blur & polish
 
 References:
 Algorithms from:
 - J. E. Bresenham (1965). "Algorithm for computer control of a digital plotter." IBM Systems Journal, 4(1), 25–30.
-    (basis for integer line rasterization used in line()/thickLine())
+    (basis for integer line rasterization used in line() and hairline strokes)
 
 - P. de Casteljau (1959). "Courbes à pôles" (Citroën internal report). Commonly referenced via standard CG texts.
-    (basis for quadratic Bézier sampling used in qBezier())
+    (Bézier curves; qBezier()/cBezier() step them by forward differencing, segment count from the
+    second-difference flatness bound)
 
 - J. D. Foley, A. van Dam, S. K. Feiner, J. F. Hughes (1990/1995). Computer Graphics: Principles and Practice (2nd ed.).
     (midpoint circle/ellipse, scanline polygon fill fundamentals)
 
 - T. Porter, T. Duff (1984). "Compositing Digital Images." SIGGRAPH Computer Graphics, 18(3), 253–259.
-    (alpha compositing rationale; premultiplied blending used in pblend())
+    (alpha compositing rationale; source-over onto a premultiplied destination in pblend())
 
 Credits & Notes:
-- Motion blur is simulated by layered, alpha-attenuated "ghost" draws (see sceneStreet()/drawTruck()).
+- Motion blur is simulated by layered, alpha-attenuated "ghost" draws (see sceneStreet()/drawTruck());
+    each ghost blits one cached truck sprite (cache size -Dslime.spriteKB, default 8192 per renderer).
 - Vignette and film grain are simple post-process passes implemented in software over the pixel buffer.
+- Every frame is a pure function of t, so the loop can also be exported headless:
+    java Assignment1_66050946_66050859 --export <dir> [fps] [from] [to]
+    or streamed as Y4M / raw RGB24 to a file or stdout (pipe into an encoder):
+    java Assignment1_66050946_66050859 --stream <file.y4m|file.rgb|-> [fps] [from] [to]
+- Primitive/pass/frame micro-benchmarks (JSON results): --bench [out.json] [name-regex]
+- Binary frame traces for rasterizer-only replay: --trace-capture <file> [from] [to] [fps],
+    --trace-replay <file> [passes]
+- Heap bytes allocated per frame, per scene (exit status 1 if any): --alloc [frames] [warmup]
+- Street -> slime transition: -Dslime.transition=fade|crossfade|wipe (default fade to black),
+    a single pass over cached stills of the last street frame and the first slime frame.
+- Opaque occlusion: each frame is recorded, opaque coverage collected back to front, and the
+    replay skips pixels a later opaque draw overwrites (-Dslime.occlusion=false turns it off;
+    --metrics reports the overdraw eliminated per scene).
+- Frame rate: -Dslime.fps=<rate> (default 60, 0 = uncapped); motion is the same at any rate.
+- Scenes are laid out in a 600x600 design space and scale to -Dslime.size=WxH; the internal
+    resolution drops (and comes back) with frame time unless -Dslime.dynres=false.
+- Per-pass/per-scene latency histograms: --metrics [loops]; JFR events slime.RenderPass/slime.Frame.
+    In the window, -Dslime.metrics=true prints them on exit and H toggles the timing HUD.
 
 */
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.*;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.imageio.ImageIO;
 
 public class Assignment1_66050946_66050859{
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--export")) {
+            BatchRenderer.main(args);
+            return;
+        }
+        try {
+            if (args.length > 0 && args[0].equals("--bench")) {
+                RasterBench.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--trace-capture")) {
+                FrameTrace.capture(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--trace-replay")) {
+                FrameTrace.replay(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--metrics")) {
+                FrameMetrics.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--alloc")) {
+                AllocationMeter.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--stream")) {
+                VideoStream.main(args);
+                return;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
         SwingUtilities.invokeLater(() -> {
             JFrame f = new JFrame("WHAT IF I REBORNED — Slime World");
             f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            PixelPanel p = new PixelPanel(600, 600);
+            // -Dslime.size=WxH sets the panel (and full render) resolution
+            String[] size = System.getProperty("slime.size", "600x600").split("x");
+            PixelPanel p = new PixelPanel(Integer.parseInt(size[0].trim()), Integer.parseInt(size[1].trim()));
             f.setContentPane(p);
             f.pack();
             f.setLocationRelativeTo(null);
@@ -52,38 +129,19 @@ public class Assignment1_66050946_66050859{
 
 class PixelPanel extends JPanel implements Runnable {
     // ================= Fields =================
-    private static final double FPS = 60.0; // Frames per second
-    private static final long   NANO_PER_SEC = 1_000_000_000L; // ns/second
-
-    // --- Timeline (seconds) ---
-    private final double T1 = 2.0;   // street & truck hit
-    private final double T2 = 3.0;   // fade to black
-    private final double T3 = 8.0;   // slime world (loop duration)
-
-    // --- Scene layout constants ---
-    private static final int SKY_BASE_Y = 360;
-
-    private static final int ROAD_Y_TOP    = 430;
-    private static final int ROAD_Y_BOTTOM = 600;
+    private static final double FPS = Double.parseDouble(System.getProperty("slime.fps", "60")); // 0 = uncapped
 
-    private static final int DASH_WIDTH = 50;
-    private static final int DASH_GAP   = 30;   // step = width + gap = 80
-    private static final int DASH_Y     = 510;
-    private static final int DASH_THICK = 10;
-
-    private static final int GROUND_Y = ROAD_Y_TOP; // baseline ตัวละคร/รถ
-
-    // --- Slime smoothing state (reduce shimmer) ---
-    private double rxSm = 130;
-    private double rySm = 110;
-
-    // --- Back buffer ---
+    // --- Buffers: rendered on this thread, presented on the EDT ---
     private final int W, H;
-    private final BufferedImage canvas;
-    private final int[] pix;
+    private final SwapChain swap;
+    private final FrameRenderer renderer;    // full resolution
+    private final DynamicResolution dynres;  // picks the internal scale per frame
+    private volatile boolean hud;            // toggled on the EDT, applied by the render thread
+    private FrameMetrics metrics; // created with -Dslime.metrics or when the HUD is first shown
 
     private volatile boolean running = true;
     private long t0; // start time (ns)
+    private volatile FrameScheduler clock; // created by the render thread
 
     // ================= Lifecycle =================
     public PixelPanel(int w, int h) {
@@ -91,15 +149,57 @@ class PixelPanel extends JPanel implements Runnable {
         this.H = h;
         setPreferredSize(new Dimension(W, H));
 
-        // Create a 32-bit ARGB image and pull its pixel array for fast writes.
-        canvas = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
-        pix = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        // Three opaque int RGB images; the renderer always draws into the swap chain's back one.
+        swap = new SwapChain(W, H);
+        renderer = new FrameRenderer(swap.back());
+        int bands = Integer.getInteger("slime.bands", Runtime.getRuntime().availableProcessors());
+        renderer.setBands(bands);
+
+        // Timing: -Dslime.metrics prints histograms at exit, H (or -Dslime.hud) toggles the overlay
+        if (Boolean.getBoolean("slime.metrics")) {
+            FrameMetrics m = metrics = new FrameMetrics();
+            renderer.setMetrics(m);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                m.report(System.out);
+                FrameScheduler c = clock;
+                System.out.printf("frames rendered %d, presented %d, dropped %d, skipped %d%n",
+                                  swap.rendered(), swap.presented(), swap.dropped(), c == null ? 0 : c.skipped());
+            }));
+        }
+        hud = Boolean.getBoolean("slime.hud");
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke('h'), "hud");
+        getActionMap().put("hud", new AbstractAction() {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                hud = !hud;
+            }
+        });
+
+        // Dynamic resolution against the frame budget (-Dslime.dynres=false pins full scale),
+        // upscaled with -Dslime.upscale=bilinear (default) or nearest
+        boolean dyn = !"false".equals(System.getProperty("slime.dynres"));
+        dynres = new DynamicResolution(renderer, bands, dyn ? FPS : 0,
+                                       !"nearest".equals(System.getProperty("slime.upscale")));
+        setHud(hud);
+    }
+
+    // The overlay draws from the metrics, so the first time it is shown one set is created
+    // here and shared by every level
+    private void setHud(boolean on) {
+        if (on && metrics == null) {
+            metrics = new FrameMetrics();
+            dynres.setMetrics(metrics);
+        }
+        dynres.setHud(on);
     }
 
     @Override
     protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        g.drawImage(canvas, 0, 0, null); // draw back buffer to screen
+        if (getWidth() > W || getHeight() > H) super.paintComponent(g); // frames cover W x H only
+        FrameMetrics m = renderer.metrics();
+        long p0 = m == null ? 0 : m.beginPresent();
+        g.drawImage(swap.acquire(), 0, 0, null); // latest completed frame
+        if (m != null) m.endPresent(p0);
     }
 
     @Override
@@ -110,36 +210,516 @@ class PixelPanel extends JPanel implements Runnable {
 
     @Override
     public void run() {
-        final long step = (long) (NANO_PER_SEC / FPS); // target frame step in ns
-        long last = System.nanoTime();
-
+        clock = new FrameScheduler(FPS, t0);
         while (running) {
-            long now = System.nanoTime();
-            if (now - last >= step) {
-                double t = (now - t0) / 1e9; // seconds since start
-                render(t % T3); // loop time within [0, T3)
-                repaint();     // schedule paint
-                last = now;
+            long due = clock.awaitFrame(); // frames are timed by their deadline, not by when we woke up
+            double t = (due - t0) / 1e9;   // seconds since start
+            if (hud != renderer.hud()) setHud(hud);
+            DirtyRegion frame = dynres.render(t % FrameRenderer.T3, swap.back()); // loop time within [0, T3)
+
+            // hand the frame to the EDT and schedule paint of the changed boxes only
+            DirtyRegion d = swap.publish(frame);
+            for (int i = 0; i < d.n; i++) {
+                repaint(d.x0[i], d.y0[i], d.x1[i] - d.x0[i] + 1, d.y1[i] - d.y0[i] + 1);
+            }
+        }
+    }
+}
+
+// Fixed-timestep pacing: frame k is due at start + k * period. The loop parks until the
+// deadline (spinning only for the last stretch, where parkNanos overshoots), so lateness
+// never accumulates; when a frame finishes after later deadlines have passed, those
+// frames are skipped instead of being rendered late.
+final class FrameScheduler {
+    private static final long SPIN_NANOS = 200_000; // park granularity margin
+
+    private final long period; // ns, 0 = uncapped
+    private long next;         // deadline of the next frame
+    private long skipped;
+
+    // fps <= 0 runs uncapped (as fast as frames render)
+    FrameScheduler(double fps, long start) {
+        period = fps > 0 ? Math.round(1e9 / fps) : 0;
+        next = start;
+    }
+
+    // Block until the next frame is due; returns its deadline (System.nanoTime() based)
+    long awaitFrame() {
+        long now = System.nanoTime();
+        if (period == 0) return now;
+        if (now - next >= period) { // behind by at least a whole frame: drop the missed ones
+            long missed = (now - next) / period;
+            skipped += missed;
+            next += missed * period;
+        }
+        long left;
+        while ((left = next - System.nanoTime()) > 0) {
+            if (left > SPIN_NANOS) LockSupport.parkNanos(left - SPIN_NANOS);
+            else Thread.onSpinWait();
+        }
+        long due = next;
+        next += period;
+        return due;
+    }
+
+    long skipped() {
+        return skipped;
+    }
+}
+
+// Lock-free triple buffering between one render thread and the EDT. The three slots are
+// owned by the producer (back), the consumer (front) or neither (ready); handing a frame
+// over is a single atomic exchange of the ready slot, so neither side ever waits. A frame
+// published over one the EDT never took is dropped, and its damage is carried into the
+// next one so repaints still cover everything that changed since the last presented frame.
+final class SwapChain {
+    private static final int FRESH = 4; // ready slot holds a frame the EDT has not taken
+
+    private final BufferedImage[] images = new BufferedImage[3];
+    private final Rasterizer[] targets = new Rasterizer[3];
+    // Damage of each slot's frame relative to the last frame the EDT took before it
+    private final DirtyRegion[] damage = new DirtyRegion[3];
+
+    private final AtomicInteger ready = new AtomicInteger(1); // slot index | FRESH
+    private int back = 0;  // render thread only
+    private int front = 2; // EDT only
+
+    private final AtomicLong rendered = new AtomicLong(), presented = new AtomicLong(), dropped = new AtomicLong();
+
+    SwapChain(int w, int h) {
+        for (int i = 0; i < 3; i++) {
+            images[i] = image(w, h);
+            int[] pix = ((DataBufferInt) images[i].getRaster().getDataBuffer()).getData();
+            targets[i] = new Rasterizer(w, h, pix, Rasterizer.OPAQUE);
+            damage[i] = new DirtyRegion();
+        }
+    }
+
+    // Opaque int RGB image in the screen's own layout, so presenting it is a plain copy with
+    // no per-pixel alpha conversion (TYPE_INT_ARGB went through one on every paint). Falls
+    // back to TYPE_INT_RGB when the screen's compatible image is not int-packed RGB.
+    private static BufferedImage image(int w, int h) {
+        if (!GraphicsEnvironment.isHeadless()) {
+            BufferedImage img = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration().createCompatibleImage(w, h, Transparency.OPAQUE);
+            if (img.getType() == BufferedImage.TYPE_INT_RGB) return img;
+        }
+        return new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    }
+
+    // ================= Render thread =================
+    // Buffer to draw the next frame into
+    Rasterizer back() {
+        return targets[back];
+    }
+
+    // Publish the back buffer as the latest frame (frameDamage = change from the previous
+    // frame); returns the region the screen needs repainted, valid until the next publish
+    DirtyRegion publish(DirtyRegion frameDamage) {
+        DirtyRegion d = damage[back];
+        d.set(frameDamage);
+        // Previous frame not taken yet: it will be dropped, so repaint its changes too. If the
+        // EDT takes it meanwhile, the extra area is merely repainted twice.
+        int s = ready.get();
+        if ((s & FRESH) != 0) d.addAll(damage[s & 3]);
+        DirtyRegion published = d;
+        s = ready.getAndSet(back | FRESH);
+        back = s & 3;
+        rendered.incrementAndGet();
+        if ((s & FRESH) != 0) dropped.incrementAndGet();
+        return published;
+    }
+
+    // ================= EDT =================
+    // Latest completed frame (the same image again if nothing new was published)
+    BufferedImage acquire() {
+        if ((ready.get() & FRESH) != 0) {
+            front = ready.getAndSet(front) & 3; // only the EDT clears FRESH
+            presented.incrementAndGet();
+        }
+        return images[front];
+    }
+
+    long rendered() {
+        return rendered.get();
+    }
+
+    long presented() {
+        return presented.get();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
+
+// Dynamic resolution: renders at a reduced internal scale while recent frame times exceed
+// the budget and upscales (nearest or bilinear) into the output buffer, stepping back up
+// once the predicted cost at the next scale fits with headroom. Level 0 renders straight
+// into the output through the full-size renderer; each lower level has its own renderer
+// and rasterizer, created on first use. Upscaling only touches what changed since that
+// output buffer last received a frame from the same level.
+final class DynamicResolution {
+    static final double[] SCALES = {1.0, 0.75, 0.5, 0.35};
+
+    private static final double DOWN_AT  = 0.90; // of budget: step down above this
+    private static final double UP_AT    = 0.60; // predicted cost at the next scale must be under this
+    private static final int    COOLDOWN = 30;   // frames between level changes
+
+    private final int W, H;
+    private final FrameRenderer[] renderers = new FrameRenderer[SCALES.length];
+    private final int bands;
+    private final long budget;  // ns per frame, 0 = controller off (always full scale)
+    private final boolean bilinear;
+
+    private int level, lastLevel = -1;
+    private double avg;         // EMA of render + upscale time (ns)
+    private int cooldown;
+
+    // Output buffers seen so far: the level whose frame each holds, and the low-res damage
+    // since then (the swap chain rotates through a handful of buffers)
+    private final Rasterizer[] outs = new Rasterizer[4];
+    private final int[] outLevel = new int[4];
+    private final DirtyRegion[] pending = new DirtyRegion[4];
+
+    // Screen change from the previous frame, in output pixels
+    private final DirtyRegion damage = new DirtyRegion();
+    private final int[] box = new int[4];
+
+    // Per-level source sample positions for output columns/rows (index + 8-bit fraction)
+    private final int[][] colIdx = new int[SCALES.length][], colFrac = new int[SCALES.length][];
+    private final int[][] rowIdx = new int[SCALES.length][], rowFrac = new int[SCALES.length][];
+
+    DynamicResolution(FrameRenderer full, int bands, double fps, boolean bilinear) {
+        Rasterizer t = full.target();
+        this.W = t.W;
+        this.H = t.H;
+        this.bands = bands;
+        this.budget = fps > 0 ? Math.round(1e9 / fps) : 0;
+        this.bilinear = bilinear;
+        renderers[0] = full;
+        for (int i = 0; i < pending.length; i++) pending[i] = new DirtyRegion();
+    }
+
+    int level() {
+        return level;
+    }
+
+    double scale() {
+        return SCALES[level];
+    }
+
+    // Renderer for a level (created on first use with the full-size one's settings)
+    FrameRenderer renderer(int level) {
+        if (renderers[level] == null) {
+            int w = Math.max(1, (int) Math.round(W * SCALES[level]));
+            int h = Math.max(1, (int) Math.round(H * SCALES[level]));
+            FrameRenderer fr = new FrameRenderer(new Rasterizer(w, h, new int[w * h], renderers[0].target().format));
+            fr.setBands(bands);
+            fr.setMetrics(renderers[0].metrics());
+            fr.setHud(renderers[0].hud());
+            renderers[level] = fr;
+            buildSampling(level, w, h);
+        }
+        return renderers[level];
+    }
+
+    void setMetrics(FrameMetrics fm) {
+        for (FrameRenderer fr : renderers) if (fr != null) fr.setMetrics(fm);
+    }
+
+    void setHud(boolean on) {
+        for (FrameRenderer fr : renderers) if (fr != null) fr.setHud(on);
+    }
+
+    // Render time t into out; returns the screen damage relative to the previous frame
+    DirtyRegion render(double t, Rasterizer out) {
+        long t0 = System.nanoTime();
+        int lv = level;
+        FrameRenderer fr = renderer(lv);
+        int slot = slot(out);
+        if (lv == 0) {
+            fr.setTarget(out);
+            fr.render(t);
+            outLevel[slot] = 0;
+            damage.set(fr.damage());
+        } else {
+            fr.render(t);
+            DirtyRegion d = fr.damage();
+            for (int i = 0; i < outs.length; i++) {
+                if (outs[i] != null && outLevel[i] == lv) pending[i].addAll(d);
+            }
+            Rasterizer src = fr.target();
+            if (outLevel[slot] != lv) {
+                upscale(lv, src, out, 0, 0, W - 1, H - 1);
+                outLevel[slot] = lv;
             } else {
-                try {
-                    Thread.sleep(1); // avoid busy-wait
-                } catch (Exception ignore) { /* no-op */ }
+                DirtyRegion p = pending[slot];
+                for (int i = 0; i < p.n; i++) {
+                    outBox(p.x0[i], p.y0[i], p.x1[i], p.y1[i], src.W, src.H);
+                    upscale(lv, src, out, box[0], box[1], box[2], box[3]);
+                }
+            }
+            pending[slot].clear();
+            out.markAll(); // out no longer holds a layer + damage the full-size renderer can trust
+
+            damage.clear();
+            for (int i = 0; i < d.n; i++) {
+                outBox(d.x0[i], d.y0[i], d.x1[i], d.y1[i], src.W, src.H);
+                damage.add(box[0], box[1], box[2], box[3]);
+            }
+        }
+        if (lv != lastLevel) damage.add(0, 0, W - 1, H - 1);
+        lastLevel = lv;
+        observe(System.nanoTime() - t0);
+        return damage;
+    }
+
+    // ================= Controller =================
+    private void observe(long nanos) {
+        if (budget == 0) return;
+        avg = avg == 0 ? nanos : avg + (nanos - avg) / 8;
+        if (cooldown > 0) {
+            cooldown--;
+            return;
+        }
+        if (avg > budget * DOWN_AT && level < SCALES.length - 1) {
+            switchTo(level + 1);
+        } else if (level > 0) {
+            double ratio = SCALES[level - 1] / SCALES[level];
+            if (avg * ratio * ratio < budget * UP_AT) switchTo(level - 1); // cost ~ pixel count
+        }
+    }
+
+    private void switchTo(int lv) {
+        double ratio = SCALES[lv] / SCALES[level];
+        avg *= ratio * ratio; // start from the predicted cost instead of the old level's
+        level = lv;
+        cooldown = COOLDOWN;
+    }
+
+    // ================= Upscale =================
+    private int slot(Rasterizer out) {
+        for (int i = 0; i < outs.length; i++) {
+            if (outs[i] == out) return i;
+        }
+        for (int i = 0; i < outs.length; i++) {
+            if (outs[i] == null) {
+                outs[i] = out;
+                outLevel[i] = -1;
+                return i;
             }
         }
+        // More buffers than expected: recycle slot 0 (forces a full upscale there)
+        outs[0] = out;
+        outLevel[0] = -1;
+        return 0;
+    }
+
+    // Source position of each output column/row: pixel centers aligned, 8-bit fraction
+    private void buildSampling(int lv, int w, int h) {
+        colIdx[lv] = new int[W];
+        colFrac[lv] = new int[W];
+        rowIdx[lv] = new int[H];
+        rowFrac[lv] = new int[H];
+        sampling(W, w, colIdx[lv], colFrac[lv]);
+        sampling(H, h, rowIdx[lv], rowFrac[lv]);
+    }
+
+    private static void sampling(int dst, int src, int[] idx, int[] frac) {
+        for (int i = 0; i < dst; i++) {
+            long p = Math.max(0, ((2L * i + 1) * src * 256 / dst - 256) / 2); // (i + 0.5) * src/dst - 0.5, 24.8
+            int k = (int) (p >> 8);
+            if (k >= src - 1) {
+                idx[i] = src - 1;
+                frac[i] = 0;
+            } else {
+                idx[i] = k;
+                frac[i] = (int) (p & 255);
+            }
+        }
+    }
+
+    // Output rect [x0..x1] x [y0..y1] (inclusive) from src
+    private void upscale(int lv, Rasterizer src, Rasterizer out, int x0, int y0, int x1, int y1) {
+        int[] s = src.pix, d = out.pix;
+        int sw = src.W;
+        int[] cx = colIdx[lv], cf = colFrac[lv];
+        for (int y = y0; y <= y1; y++) {
+            int row = rowIdx[lv][y] * sw;
+            int fy = rowFrac[lv][y];
+            int o = y * W;
+            if (!bilinear) {
+                for (int x = x0; x <= x1; x++) d[o + x] = s[row + cx[x] + (cf[x] >= 128 ? 1 : 0)];
+                continue;
+            }
+            int next = fy == 0 ? row : row + sw;
+            for (int x = x0; x <= x1; x++) {
+                int i = cx[x], fx = cf[x];
+                int j = fx == 0 ? i : i + 1;
+                int c00 = s[row + i], c01 = s[row + j], c10 = s[next + i], c11 = s[next + j];
+                int rb = lerp(lerp(c00 & 0xFF00FF, c01 & 0xFF00FF, fx), lerp(c10 & 0xFF00FF, c11 & 0xFF00FF, fx), fy);
+                int ag = lerp(lerp((c00 >>> 8) & 0xFF00FF, (c01 >>> 8) & 0xFF00FF, fx),
+                              lerp((c10 >>> 8) & 0xFF00FF, (c11 >>> 8) & 0xFF00FF, fx), fy);
+                d[o + x] = (ag << 8) | rb;
+            }
+        }
+    }
+
+    // Two 8-bit lanes at once (0x00FF00FF layout), weight f/256 toward q
+    private static int lerp(int p, int q, int f) {
+        return ((p * (256 - f) + q * f) >>> 8) & 0xFF00FF;
+    }
+
+    // Low-res box -> every output pixel whose filter taps reach it (into box[])
+    private void outBox(int x0, int y0, int x1, int y1, int sw, int sh) {
+        box[0] = Math.max(0, (int) ((long) (x0 - 1) * W / sw));
+        box[1] = Math.max(0, (int) ((long) (y0 - 1) * H / sh));
+        box[2] = Math.min(W - 1, (int) ((long) (x1 + 2) * W / sw));
+        box[3] = Math.min(H - 1, (int) ((long) (y1 + 2) * H / sh));
+    }
+}
+
+// Software rasterizer over a packed ARGB int[] (no Swing dependency).
+class Rasterizer {
+    // Pixel formats. PREMULTIPLIED tracks alpha and stores color premultiplied by it (sprites,
+    // anything translucent). OPAQUE buffers hold only opaque pixels: blends never read or
+    // compute alpha and always store 255 (scene framebuffers, layers, presentation).
+    static final int PREMULTIPLIED = 0, OPAQUE = 1;
+
+    final int W, H;
+    final int[] pix;
+    final int format;
+
+    // Per-row scratch (colors / alphas) for the span kernels
+    private final int[] rowBuf;
+
+    // Damage recorded by every public primitive since the last clear (see FrameRenderer)
+    final DirtyRegion damage = new DirtyRegion();
+
+    // Layer whose pixels this buffer holds outside of 'damage' (null = unknown)
+    Layer baseLayer;
+    long baseKey;
+
+    // Rows this rasterizer may write: [clipTop, clipBottom). Band views share pix.
+    final int clipTop, clipBottom;
+
+    // When set, public primitives are appended here instead of drawn (see CommandBuffer)
+    CommandBuffer rec;
+
+    // Pixels written so far (coverage statistics for trace replay)
+    long covered;
+
+    // Primitives rejected by their bounds so far (missed every pixel of this view)
+    long culled;
+
+    // Occlusion while replaying a frame (see Occlusion): seq is the position of the command
+    // being drawn, which may skip what later opaque commands cover. A collector rasterizer
+    // (no pixels) instead adds the spans it would draw at alpha 255 to occ.
+    Occlusion occ;
+    int seq;
+    boolean collect;
+    long occluded; // pixels skipped that way
+
+    // Uncovered parts of a span (see open) and the covering spans, sorted
+    private int[] gapLo = new int[8], gapHi = new int[8], cutLo = new int[8], cutHi = new int[8];
+
+    // slimeBody shading: 1 - sqrt(d2) tabulated over d2 in [0, 1] (linear interpolation keeps
+    // every channel within 1 of the exact value), plus per-column tables for the current rx
+    private static final int SHADE_STEPS = 4096;
+    private static final double[] ONE_MINUS_D = new double[SHADE_STEPS + 1];
+    static {
+        for (int i = 0; i <= SHADE_STEPS; i++) ONE_MINUS_D[i] = 1 - Math.sqrt(i / (double) SHADE_STEPS);
+    }
+    private double[] shadeNx2 = new double[0], shadeLight = new double[0];
+
+    Rasterizer(int w, int h) {
+        this(w, h, new int[w * h]);
+    }
+
+    Rasterizer(int w, int h, int[] pix) {
+        this(w, h, pix, PREMULTIPLIED);
+    }
+
+    Rasterizer(int w, int h, int[] pix, int format) {
+        this(w, h, pix, format, 0, h);
+    }
+
+    private Rasterizer(int w, int h, int[] pix, int format, int clipTop, int clipBottom) {
+        this.W = w;
+        this.H = h;
+        this.pix = pix;
+        this.format = format;
+        this.clipTop = clipTop;
+        this.clipBottom = clipBottom;
+        this.rowBuf = new int[Math.max(w, 1)];
+    }
+
+    // View of rows [top, bottom) over the same pixels, for band-parallel replay
+    Rasterizer band(int top, int bottom) {
+        return new Rasterizer(W, H, pix, format, Math.max(top, clipTop), Math.min(bottom, clipBottom));
+    }
+
+    // n equal band views, created once and reused while n stays the same
+    private Rasterizer[] bandViews = new Rasterizer[0];
+
+    Rasterizer[] bands(int n) {
+        if (bandViews.length != n) {
+            bandViews = new Rasterizer[n];
+            for (int i = 0; i < n; i++) bandViews[i] = band(i * H / n, (i + 1) * H / n);
+        }
+        return bandViews;
     }
 
     // ================= Pixel utils =================
-    private static int ARGB(int a, int r, int g, int b) {
+    static int ARGB(int a, int r, int g, int b) {
         // Combine ARGB components into a single 32-bit int.
         return ((a & 255) << 24) | ((r & 255) << 16) | ((g & 255) << 8) | (b & 255);
     }
 
-    private void clear(int col) {
-        Arrays.fill(pix, col);
+    static int clamp(int v) {
+        return (v < 0) ? 0 : Math.min(255, v);
+    }
+
+    void clear(int col) {
+        markAll();
+        if (rec != null) { rec.clear(col); return; }
+        covered += (long) (clipBottom - clipTop) * W;
+        Arrays.fill(pix, clipTop * W, clipBottom * W, format == OPAQUE ? col | 0xFF000000 : col);
+    }
+
+    // Does the box (inclusive, unclipped) touch this view: columns [0, W), rows [clipTop, clipBottom)?
+    boolean visible(int x0, int y0, int x1, int y1) {
+        return x0 <= x1 && y0 <= y1 && x1 >= 0 && x0 < W && y1 >= clipTop && y0 < clipBottom;
+    }
+
+    // Record the damaged bounds of a primitive (inclusive, unclipped). False when they miss
+    // this view: the primitive is culled, neither drawn nor recorded.
+    boolean mark(int x0, int y0, int x1, int y1) {
+        if (!visible(x0, y0, x1, y1)) {
+            culled++;
+            return false;
+        }
+        damage.add(Math.max(0, x0), Math.max(0, y0), Math.min(W - 1, x1), Math.min(H - 1, y1));
+        return true;
+    }
+
+    // Whole-frame pass: the buffer no longer matches any retained layer
+    void markAll() {
+        damage.add(0, 0, W - 1, H - 1);
+        baseLayer = null;
     }
 
-    private void pblend(int x, int y, int sr, int sg, int sb, int sa) {
-        if ((x | y) < 0 || x >= W || y >= H || sa <= 0) return;
+    void pblend(int x, int y, int sr, int sg, int sb, int sa) {
+        if (!mark(x, y, x, y)) return;
+        if (rec != null) { rec.pblend(x, y, sr, sg, sb, sa); return; }
+        blend(x, y, sr, sg, sb, sa);
+    }
+
+    // Single-pixel source-over (no damage recording; used inside primitives)
+    private void blend(int x, int y, int sr, int sg, int sb, int sa) {
+        if (x < 0 || x >= W || y < clipTop || y >= clipBottom || sa <= 0) return;
+        covered++;
 
         int idx = y * W + x;
         int dst = pix[idx];
@@ -149,10 +729,11 @@ class PixelPanel extends JPanel implements Runnable {
         int dg = (dst >>> 8)  & 255;
         int db =  dst         & 255;
 
-        // outA = sA + dA*(1 - sA)
-        int a = sa + da * (255 - sa) / 255;
+        // outA = sA + dA*(1 - sA); always 1 over an opaque buffer
+        int a = format == OPAQUE ? 255 : sa + da * (255 - sa) / 255;
 
-        // Premultiplied blend in 0..255 space:
+        // Straight-alpha source over the premultiplied destination, in 0..255 space
+        // (an opaque destination is the same in either convention):
         // outRGB = sRGB*sA + dRGB*(1 - sA)
         int r = (sr * sa + dr * (255 - sa)) / 255;
         int g = (sg * sa + dg * (255 - sa)) / 255;
@@ -163,7 +744,13 @@ class PixelPanel extends JPanel implements Runnable {
 
     // ================= Primitives =================
     // Bresenham line (outline)
-    private void line(int x0, int y0, int x1, int y1, int r, int g, int b, int a) {
+    void line(int x0, int y0, int x1, int y1, int r, int g, int b, int a) {
+        if (!mark(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1))) return;
+        if (rec != null) { rec.line(x0, y0, x1, y1, r, g, b, a); return; }
+        line0(x0, y0, x1, y1, r, g, b, a);
+    }
+
+    private void line0(int x0, int y0, int x1, int y1, int r, int g, int b, int a) {
         int dx = Math.abs(x1 - x0);
         int dy = Math.abs(y1 - y0);
         int sx = x0 < x1 ? 1 : -1;
@@ -172,7 +759,7 @@ class PixelPanel extends JPanel implements Runnable {
 
         int x = x0, y = y0;
         while (true) {
-            pblend(x, y, r, g, b, a);
+            blend(x, y, r, g, b, a);
             if (x == x1 && y == y1) break;
             int e2 = 2 * err;
             if (e2 > -dy) { err -= dy; x += sx; }
@@ -180,60 +767,208 @@ class PixelPanel extends JPanel implements Runnable {
         }
     }
 
-    // Thick line via small disc stamps (radius rr)
-    private void thickLine(int x0, int y0, int x1, int y1, int rr,
-                           int r, int g, int b, int a) {
-        int dx = Math.abs(x1 - x0);
-        int dy = Math.abs(y1 - y0);
-        int sx = x0 < x1 ? 1 : -1;
-        int sy = y0 < y1 ? 1 : -1;
-        int err = dx - dy;
+    // Thick line: one capsule of radius rr (round caps), each covered pixel blended once
+    void thickLine(int x0, int y0, int x1, int y1, int rr,
+                   int r, int g, int b, int a) {
+        if (!mark(Math.min(x0, x1) - rr, Math.min(y0, y1) - rr, Math.max(x0, x1) + rr, Math.max(y0, y1) + rr)) return;
+        if (rec != null) { rec.thickLine(x0, y0, x1, y1, rr, r, g, b, a); return; }
+        pathX[0] = x0; pathY[0] = y0;
+        pathX[1] = x1; pathY[1] = y1;
+        stroker().stroke(pathX, 0, pathY, 0, 2, rr, CAP_ROUND, JOIN_ROUND, r, g, b, a);
+    }
 
-        int x = x0, y = y0;
-        while (true) {
-            fillCircle(x, y, rr, r, g, b, a);
-            if (x == x1 && y == y1) break;
-            int e2 = 2 * err;
-            if (e2 > -dy) { err -= dy; x += sx; }
-            if (e2 <  dx) { err += dx; y += sy; }
-        }
+    // Filled circle (midpoint coverage): one span per row from the cached SpanTable
+    void fillCircle(int cx, int cy, int rr, int r, int g, int b, int a) {
+        if (!mark(cx - rr, cy - rr, cx + rr, cy + rr)) return;
+        if (rec != null) { rec.fillCircle(cx, cy, rr, r, g, b, a); return; }
+        if (rr >= 0) spans(spanTables().circle(rr), cx, cy, r, g, b, a);
     }
 
-    // Filled circle via horizontal spans
-    private void fillCircle(int cx, int cy, int rr, int r, int g, int b, int a) {
-        int x = 0, y = rr;
-        int d = 1 - rr;
-        while (x <= y) {
-            hspan(cx - x, cx + x, cy + y, r, g, b, a);
-            hspan(cx - x, cx + x, cy - y, r, g, b, a);
-            hspan(cx - y, cx + y, cy + x, r, g, b, a);
-            hspan(cx - y, cx + y, cy - x, r, g, b, a);
-            if (d < 0) {
-                d += 2 * x + 3;
-            } else {
-                d += 2 * (x - y) + 5;
-                y--;
-            }
-            x++;
+    // Rows of a span table centered on (cx, cy), clipped to this view's rows
+    private void spans(SpanTable t, int cx, int cy, int r, int g, int b, int a) {
+        int[] half = t.half;
+        int ry = t.ry;
+        int top = Math.max(-ry, clipTop - cy);
+        int bottom = Math.min(ry, clipBottom - 1 - cy);
+        for (int dy = top; dy <= bottom; dy++) {
+            int w = half[dy + ry];
+            span(cx - w, cx + w, cy + dy, r, g, b, a);
         }
     }
 
     // Horizontal span (filled rectangle)
-    private void hspan(int x1, int x2, int y, int r, int g, int b, int a) {
-        if (y < 0 || y >= H) return;
+    void hspan(int x1, int x2, int y, int r, int g, int b, int a) {
+        if (!mark(Math.min(x1, x2), y, Math.max(x1, x2), y)) return;
+        if (rec != null) { rec.hspan(x1, x2, y, r, g, b, a); return; }
+        span(x1, x2, y, r, g, b, a);
+    }
+
+    private void span(int x1, int x2, int y, int r, int g, int b, int a) {
+        if (y < clipTop || y >= clipBottom) return;
         if (x1 > x2) {
             int t = x1; x1 = x2; x2 = t;
         }
         if (x2 < 0 || x1 >= W) return;
         x1 = Math.max(0, x1);
         x2 = Math.min(W - 1, x2);
+        if (occ != null) {
+            if (collect) {
+                if (a >= 255) occ.add(y, x1, x2, seq);
+                return;
+            }
+            int n = open(y, x1, x2);
+            for (int i = 0; i < n; i++) fill(gapLo[i], gapHi[i], y, r, g, b, a);
+            return;
+        }
+        fill(x1, x2, y, r, g, b, a);
+    }
+
+    // Parts of [x1, x2] (on screen) on row y that no opaque command after seq covers, into
+    // gapLo/gapHi; returns how many. The pixels left out are counted as occluded.
+    private int open(int y, int x1, int x2) {
+        Occlusion o = occ;
+        int n = 0;
+        for (int k = o.head[y]; k >= 0; k = o.next[k]) {
+            if (o.seq[k] <= seq || o.hi[k] < x1 || o.lo[k] > x2) continue;
+            if (n + 1 == cutLo.length) {
+                cutLo = Arrays.copyOf(cutLo, 2 * n + 2); cutHi = Arrays.copyOf(cutHi, 2 * n + 2);
+                gapLo = Arrays.copyOf(gapLo, 2 * n + 2); gapHi = Arrays.copyOf(gapHi, 2 * n + 2);
+            }
+            int l = o.lo[k], j = n - 1;
+            while (j >= 0 && cutLo[j] > l) {
+                cutLo[j + 1] = cutLo[j];
+                cutHi[j + 1] = cutHi[j];
+                j--;
+            }
+            cutLo[j + 1] = l;
+            cutHi[j + 1] = o.hi[k];
+            n++;
+        }
+        int gaps = 0, x = x1;
+        for (int i = 0; i < n && x <= x2; i++) {
+            if (cutLo[i] > x) {
+                gapLo[gaps] = x;
+                gapHi[gaps++] = Math.min(cutLo[i] - 1, x2);
+            }
+            x = Math.max(x, cutHi[i] + 1);
+        }
+        if (x <= x2) {
+            gapLo[gaps] = x;
+            gapHi[gaps++] = x2;
+        }
+        if (n > 0) {
+            occluded += x2 - x1 + 1;
+            for (int i = 0; i < gaps; i++) occluded -= gapHi[i] - gapLo[i] + 1;
+        }
+        return gaps;
+    }
+
+    private void fill(int x1, int x2, int y, int r, int g, int b, int a) {
+        covered += x2 - x1 + 1;
+        if (Blend.SPANS) {
+            Blend.span(pix, y * W + x1, x2 - x1 + 1, r, g, b, a, format == OPAQUE);
+            return;
+        }
         for (int x = x1; x <= x2; x++) {
-            pblend(x, y, r, g, b, a);
+            blend(x, y, r, g, b, a);
+        }
+    }
+
+    // Sprite with its anchor at (x, y), scaled by global alpha ga; one clipped row blit per row
+    void blit(Sprite sp, int x, int y, int ga) {
+        int x0 = x + sp.ox, y0 = y + sp.oy;
+        if (!mark(x0, y0, x0 + sp.w - 1, y0 + sp.h - 1)) return;
+        if (rec != null) { rec.blit(sp, x, y, ga); return; }
+        if (ga <= 0) return;
+        ga = Math.min(ga, 255);
+        int left = Math.max(0, x0) - x0, right = Math.min(W, x0 + sp.w) - x0; // sprite columns
+        int top = Math.max(clipTop, y0), bottom = Math.min(clipBottom, y0 + sp.h);
+        for (int yy = top; yy < bottom; yy++) {
+            int sy = yy - y0, o = yy * W + x0;
+            for (int k = sp.rowStart[sy], end = sp.rowStart[sy + 1]; k < end; k++) {
+                int a = Math.max(sp.runX[k], left), b = Math.min(sp.runX[k] + sp.runLen[k], right);
+                if (a >= b) continue;
+                covered += b - a;
+                Blend.sprite(pix, o + a, b - a, sp.pix[sy * sp.w + a], ga, format == OPAQUE);
+            }
+        }
+    }
+
+    // Constant color over the whole frame (fades)
+    void blendFrame(int r, int g, int b, int a) {
+        markAll();
+        if (rec != null) { rec.blendFrame(r, g, b, a); return; }
+        covered += (long) (clipBottom - clipTop) * W;
+        if (Blend.SPANS) {
+            Blend.span(pix, clipTop * W, (clipBottom - clipTop) * W, r, g, b, a, format == OPAQUE);
+            return;
+        }
+        for (int y = clipTop; y < clipBottom; y++) {
+            for (int x = 0; x < W; x++) {
+                blend(x, y, r, g, b, a);
+            }
+        }
+    }
+
+    // Whole-frame transitions between W x H frame sprites, one pass over the view's rows that
+    // only writes pix (nothing underneath shows through):
+    //   FADE       'from' toward the opaque color by amount/255
+    //   CROSSFADE  'from' toward 'to' by amount/255
+    //   WIPE       'to' (or color when null) left of column amount, 'from' from there on
+    static final int FADE = 0, CROSSFADE = 1, WIPE = 2;
+
+    void transition(int kind, Sprite from, Sprite to, int color, int amount) {
+        markAll();
+        if (rec != null) { rec.transition(kind, from, to, color, amount); return; }
+        covered += (long) (clipBottom - clipTop) * W;
+        color |= 0xFF000000;
+        int off = clipTop * W, len = (clipBottom - clipTop) * W;
+        if (kind == WIPE) {
+            int edge = Math.max(0, Math.min(W, amount));
+            for (int y = clipTop; y < clipBottom; y++) {
+                int o = y * W;
+                if (to != null) System.arraycopy(to.pix, o, pix, o, edge);
+                else Arrays.fill(pix, o, o + edge, color);
+                System.arraycopy(from.pix, o + edge, pix, o + edge, W - edge);
+            }
+            return;
+        }
+        int k = Math.max(0, Math.min(255, amount));
+        Blend.lerp(pix, off, from.pix, kind == CROSSFADE ? to.pix : null, color, len, k);
+    }
+
+    // Opaque vertical gradient over the whole frame: each channel of row y is
+    // (int) (c0 (1 - k) + c1 k) with k = y / H, in doubles (the background layers' formula)
+    void gradient(int c0, int c1) {
+        markAll();
+        if (rec != null) { rec.gradient(c0, c1); return; }
+        for (int y = clipTop; y < clipBottom; y++) {
+            double k = y / (double) H;
+            int cr = (int) (((c0 >>> 16) & 255) * (1 - k) + ((c1 >>> 16) & 255) * k);
+            int cg = (int) (((c0 >>> 8) & 255) * (1 - k) + ((c1 >>> 8) & 255) * k);
+            int cb = (int) ((c0 & 255) * (1 - k) + (c1 & 255) * k);
+            int c = ARGB(255, cr, cg, cb), o = y * W;
+            if (occ == null) {
+                covered += W;
+                Arrays.fill(pix, o, o + W, c);
+                continue;
+            }
+            int n = open(y, 0, W - 1);
+            for (int i = 0; i < n; i++) {
+                covered += gapHi[i] - gapLo[i] + 1;
+                Arrays.fill(pix, o + gapLo[i], o + gapHi[i] + 1, c);
+            }
         }
     }
 
     // Midpoint ellipse (outline)
-    private void ellipse(int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
+    void ellipse(int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
+        if (!mark(xc - rx, yc - ry, xc + rx, yc + ry)) return;
+        if (rec != null) { rec.ellipse(xc, yc, rx, ry, r, g, b, a); return; }
+        ellipse0(xc, yc, rx, ry, r, g, b, a);
+    }
+
+    private void ellipse0(int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
         long rx2 = 1L * rx * rx;
         long ry2 = 1L * ry * ry;
 
@@ -266,363 +1001,3840 @@ class PixelPanel extends JPanel implements Runnable {
     }
 
     private void plot4(int xc, int yc, int x, int y, int r, int g, int b, int a) {
-        pblend(xc + x, yc + y, r, g, b, a);
-        pblend(xc - x, yc + y, r, g, b, a);
-        pblend(xc + x, yc - y, r, g, b, a);
-        pblend(xc - x, yc - y, r, g, b, a);
+        blend(xc + x, yc + y, r, g, b, a);
+        blend(xc - x, yc + y, r, g, b, a);
+        blend(xc + x, yc - y, r, g, b, a);
+        blend(xc - x, yc - y, r, g, b, a);
     }
 
-    // Filled ellipse (analytic scanlines)
-    private void fillEllipse(int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
-        for (int yy = -ry; yy <= ry; yy++) {
-            double t = 1.0 - (yy * yy) / (double) (ry * ry);
-            if (t < 0) continue;
-            int xx = (int) Math.floor(rx * Math.sqrt(t));
-            hspan(xc - xx, xc + xx, yc + yy, r, g, b, a);
-        }
+    // Filled ellipse (analytic scanlines, tabulated per (rx, ry) in the SpanTable cache)
+    void fillEllipse(int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
+        if (!mark(xc - rx, yc - ry, xc + rx, yc + ry)) return;
+        if (rec != null) { rec.fillEllipse(xc, yc, rx, ry, r, g, b, a); return; }
+        if (ry >= 0) spans(spanTables().ellipse(rx, ry), xc, yc, r, g, b, a);
     }
 
-    // Polygon fill (scanline)
-    private void fillPolygon(int[] xs, int[] ys, int n, int r, int g, int b, int a) {
-        // Compute y-bounds of polygon
-        int ymin = H - 1, ymax = 0;
-        for (int i = 0; i < n; i++) {
-            ymin = Math.min(ymin, ys[i]);
-            ymax = Math.max(ymax, ys[i]);
-        }
-        ymin = Math.max(0, ymin);
-        ymax = Math.min(H - 1, ymax);
+    // Polygon fill (scanline, even-odd)
+    void fillPolygon(int[] xs, int[] ys, int n, int r, int g, int b, int a) {
+        fillPolygon(xs, 0, ys, 0, n, r, g, b, a);
+    }
 
-        for (int y = ymin; y <= ymax; y++) {
-            int m = 0;
-            int[] interX = new int[n];
+    // Vertices at xs[xOff ..], ys[yOff ..] (lets replay read them straight from a command stream)
+    void fillPolygon(int[] xs, int xOff, int[] ys, int yOff, int n, int r, int g, int b, int a) {
+        if (!markPolygon(xs, xOff, ys, yOff, n, 0)) return;
+        if (rec != null) { rec.fillPolygon(xs, xOff, ys, yOff, n, r, g, b, a); return; }
+        PolygonFiller f = filler();
+        f.begin();
+        f.add(xs, xOff, ys, yOff, n, PolygonBatch.EVEN_ODD, r, g, b, a);
+        f.sweep();
+    }
 
-            for (int i = 0; i < n; i++) {
-                int j = (i + 1) % n;
-                int y0 = ys[i], y1 = ys[j];
-                int x0 = xs[i], x1 = xs[j];
+    // Every polygon of the batch in one scanline sweep; per pixel, polygons still blend
+    // in batch order (same result as filling them one after another)
+    void fillPolygons(PolygonBatch batch) {
+        fillPolygons(batch.data, 0);
+    }
 
-                boolean cond = (y0 < y && y1 >= y) || (y1 < y && y0 >= y);
-                if (cond) {
-                    int x = x0 + (int) Math.round((double) (y - y0) * (x1 - x0) / (double) (y1 - y0));
-                    interX[m++] = x;
-                }
+    // Polygons that miss the view are culled one by one; the batch is only recorded when
+    // at least one is visible (replay culls the rest again against its own view)
+    void fillPolygons(int[] d, int off) {
+        int count = d[off], shown = 0;
+        int p = off + 1;
+        for (int k = 0; k < count; k++) {
+            int n = d[p];
+            bounds(d, p + 6, d, p + 6 + n, n, 0);
+            if (visible(bbox[0], bbox[1], bbox[2], bbox[3])) {
+                mark(bbox[0], bbox[1], bbox[2], bbox[3]);
+                shown++;
             }
-
-            Arrays.sort(interX, 0, m);
-            for (int k = 0; k + 1 < m; k += 2) {
-                hspan(interX[k], interX[k + 1], y, r, g, b, a);
+            p += 6 + 2 * n;
+        }
+        if (shown == 0) { culled += count; return; }
+        if (rec != null) { rec.fillPolygons(d, off, p - off); return; }
+        culled += count - shown;
+        PolygonFiller f = filler();
+        f.begin();
+        p = off + 1;
+        for (int k = 0; k < count; k++) {
+            int n = d[p];
+            if (shown == count || visibleBounds(d, p + 6, d, p + 6 + n, n)) {
+                f.add(d, p + 6, d, p + 6 + n, n, d[p + 1], d[p + 2], d[p + 3], d[p + 4], d[p + 5]);
             }
+            p += 6 + 2 * n;
         }
+        f.sweep();
     }
 
-    // Quadratic Bezier polyline (De Casteljau sampling)
-    private void qBezier(int x0, int y0, int x1, int y1, int x2, int y2,
-                         int r, int g, int b, int a) {
-        double len = Math.hypot(x1 - x0, y1 - y0) + Math.hypot(x2 - x1, y2 - y1);
-        int steps = Math.max(12, (int) (len / 6));
+    // Bounding box of the vertices, grown by pad, into bbox
+    private final int[] bbox = new int[4];
 
-        int px = x0, py = y0;
-        for (int i = 1; i <= steps; i++) {
-            double t = i / (double) steps;
-            double u = 1 - t;
-            int x = (int) Math.round(u * u * x0 + 2 * u * t * x1 + t * t * x2);
-            int y = (int) Math.round(u * u * y0 + 2 * u * t * y1 + t * t * y2);
-            line(px, py, x, y, r, g, b, a);
-            px = x; py = y;
+    private void bounds(int[] xs, int xOff, int[] ys, int yOff, int n, int pad) {
+        int xmin = Integer.MAX_VALUE, xmax = Integer.MIN_VALUE;
+        int ymin = Integer.MAX_VALUE, ymax = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            xmin = Math.min(xmin, xs[xOff + i]);
+            xmax = Math.max(xmax, xs[xOff + i]);
+            ymin = Math.min(ymin, ys[yOff + i]);
+            ymax = Math.max(ymax, ys[yOff + i]);
         }
+        bbox[0] = xmin - pad;
+        bbox[1] = ymin - pad;
+        bbox[2] = xmax + pad;
+        bbox[3] = ymax + pad;
     }
 
-    // ================= Scenes =================
-    private double easeOutQuad(double t) {
-        return t * (2 - t);
+    private boolean visibleBounds(int[] xs, int xOff, int[] ys, int yOff, int n) {
+        bounds(xs, xOff, ys, yOff, n, 0);
+        return visible(bbox[0], bbox[1], bbox[2], bbox[3]);
     }
 
-    private double easeInOutSine(double t) {
-        return 0.5 * (1 - Math.cos(Math.PI * t));
+    private boolean markPolygon(int[] xs, int xOff, int[] ys, int yOff, int n, int pad) {
+        bounds(xs, xOff, ys, yOff, n, pad);
+        return mark(bbox[0], bbox[1], bbox[2], bbox[3]);
     }
 
-    private void render(double t) {
-        if (t <= T1) {
-            sceneStreet(t / T1);
-            vignette();
-            filmGrain(10); // grain only in street scene
-        } else if (t <= T2) {
-            double u = (t - T1) / (T2 - T1);
-            sceneFadeBlack(u);
-            vignette();
-            // no grain during fade
-        } else {
-            double u = (t - T2) / (T3 - T2);
-            sceneSlime(u);
-            // no grain/vignette in slime scene for stability
-        }
-    }
+    private PolygonFiller filler;
 
-    // Compute impact shake offset (only for character/vehicle)
-    private int[] impactShake(double u) {
-        if (u <= 0.85) return new int[]{0, 0};
-        double k = (u - 0.85) / 0.15;
-        int dx = (int) (Math.sin(60 * k) * 8);
-        int dy = (int) (Math.cos(50 * k) * 6);
-        return new int[]{dx, dy};
+    private PolygonFiller filler() {
+        if (filler == null) filler = new PolygonFiller(this);
+        return filler;
     }
 
-    // --- Scene 1: street, stickman, truck with motion blur, impact shake ---
-    private void sceneStreet(double u) {
-        // Background gradient (stable)
-        for (int y = 0; y < H; y++) {
-            double k = y / (double) H;
-            int r = (int) (20 * (1 - k) + 5 * k);
-            int g = (int) (25 * (1 - k) + 10 * k);
-            int b = (int) (40 * (1 - k) + 15 * k);
-            for (int x = 0; x < W; x++) {
-                pix[y * W + x] = ARGB(255, r, g, b);
-            }
+    // Edge-table / active-edge-list scanline filler. An edge (x0,y0)->(x1,y1) covers rows
+    // (min y, max y] and crosses row y at x0 + round((y - y0) * dx / dy); that value is
+    // stepped row to row with an exact integer DDA (quotient + remainder), so there is no
+    // division, rounding, sorting from scratch or allocation per scanline. Scratch arrays
+    // only grow.
+    private static final class PolygonFiller {
+        private final Rasterizer ras;
+
+        // Polygons of the current sweep
+        private int polys;
+        private int[] rule = new int[4], pr = new int[4], pg = new int[4], pb = new int[4], pa = new int[4];
+
+        // Edge table: edge k covers rows [top, bot]; x = q, advanced by (stepQ, stepRem) per row
+        // with remainder rem in [0, den); dir is the winding direction
+        private int edges;
+        private int[] top = new int[16], bot = new int[16], poly = new int[16], dir = new int[16];
+        private int[] ex0 = new int[16], ey0 = new int[16], edx = new int[16], edy = new int[16];
+        private int[] q = new int[16], rem = new int[16], den = new int[16], stepQ = new int[16], stepRem = new int[16];
+        private int[] order = new int[16];  // edge ids sorted by top row
+        private int[] active = new int[16]; // active edge ids, sorted by (polygon, x) each row
+        private int activeCount;
+
+        PolygonFiller(Rasterizer ras) {
+            this.ras = ras;
         }
 
-        // Parallax skyline (polygons)
-        int base = SKY_BASE_Y;
-        int[] xs1 = {0, 80, 120, 200, 240, 320, 380, 460, 520, 600, 600, 0};
-        int[] ys1 = {base, 300, 330, 280, 340, 310, 290, 320, 300, 280, ROAD_Y_BOTTOM, ROAD_Y_BOTTOM};
-        fillPolygon(xs1, ys1, xs1.length, 35, 45, 70, 255);
+        void begin() {
+            polys = 0;
+            edges = 0;
+        }
 
-        int[] xs2 = {0, 60, 140, 180, 260, 300, 360, 420, 480, 540, 600, 600, 0};
-        int[] ys2 = {base + 30, 340, 350, 330, 360, 340, 355, 340, 360, 335, 350, ROAD_Y_BOTTOM, ROAD_Y_BOTTOM};
-        fillPolygon(xs2, ys2, xs2.length, 25, 35, 55, 255);
+        void add(int[] xs, int xOff, int[] ys, int yOff, int n, int fillRule, int r, int g, int b, int a) {
+            if (polys == rule.length) {
+                int m = polys * 2;
+                rule = Arrays.copyOf(rule, m);
+                pr = Arrays.copyOf(pr, m);
+                pg = Arrays.copyOf(pg, m);
+                pb = Arrays.copyOf(pb, m);
+                pa = Arrays.copyOf(pa, m);
+            }
+            int id = polys++;
+            rule[id] = fillRule;
+            pr[id] = r; pg[id] = g; pb[id] = b; pa[id] = a;
 
-        // Road
-        fillPolygon(new int[]{0, W, W, 0},
-                    new int[]{ROAD_Y_TOP, ROAD_Y_TOP, ROAD_Y_BOTTOM, ROAD_Y_BOTTOM},
-                    4, 40, 40, 45, 255);
+            for (int i = 0; i < n; i++) {
+                int j = (i + 1) % n;
+                int x0 = xs[xOff + i], y0 = ys[yOff + i];
+                int x1 = xs[xOff + j], y1 = ys[yOff + j];
+                if (y0 == y1) continue; // horizontal edges never cross a row
+                if (edges == top.length) growEdges();
+                int k = edges++;
+                top[k] = Math.min(y0, y1) + 1;
+                bot[k] = Math.max(y0, y1);
+                poly[k] = id;
+                dir[k] = y1 > y0 ? 1 : -1;
+                ex0[k] = x0; ey0[k] = y0;
+                edx[k] = x1 - x0; edy[k] = y1 - y0;
+            }
+        }
 
-        // Dashed center line
-        for (int x = 0; x < W; x += (DASH_WIDTH + DASH_GAP)) {
-            fillPolygon(new int[]{x, x + DASH_WIDTH, x + DASH_WIDTH, x},
-                        new int[]{DASH_Y, DASH_Y, DASH_Y + DASH_THICK, DASH_Y + DASH_THICK},
-                        4, 220, 220, 140, 200);
+        private void growEdges() {
+            int m = top.length * 2;
+            top = Arrays.copyOf(top, m); bot = Arrays.copyOf(bot, m);
+            poly = Arrays.copyOf(poly, m); dir = Arrays.copyOf(dir, m);
+            ex0 = Arrays.copyOf(ex0, m); ey0 = Arrays.copyOf(ey0, m);
+            edx = Arrays.copyOf(edx, m); edy = Arrays.copyOf(edy, m);
+            q = Arrays.copyOf(q, m); rem = Arrays.copyOf(rem, m); den = Arrays.copyOf(den, m);
+            stepQ = Arrays.copyOf(stepQ, m); stepRem = Arrays.copyOf(stepRem, m);
+            order = Arrays.copyOf(order, m); active = Arrays.copyOf(active, m);
         }
 
-        // Compute shake (apply only to foreground objects)
-        int[] sh = impactShake(u);
-        int shakeX = sh[0];
-        int shakeY = sh[1];
+        // Start edge k at row y: x = x0 + floor(A / B) with A = 2(y - y0)dx + dy, B = 2dy
+        // (both negated when dy < 0 so B > 0); A grows by +-2dx per row
+        private void activate(int k, int y) {
+            long A = 2L * (y - ey0[k]) * edx[k] + edy[k];
+            long B = 2L * edy[k];
+            long S = 2L * edx[k];
+            if (B < 0) { A = -A; B = -B; S = -S; }
+            q[k] = ex0[k] + (int) Math.floorDiv(A, B);
+            rem[k] = (int) Math.floorMod(A, B);
+            den[k] = (int) B;
+            stepQ[k] = (int) Math.floorDiv(S, B);
+            stepRem[k] = (int) Math.floorMod(S, B);
+        }
 
-        // Stickman walking
-        int sy = GROUND_Y;
-        int sx = 100 + (int) (180 * u);
-        drawStickman(sx + shakeX, sy + shakeY);
+        void sweep() {
+            if (edges == 0) return;
+            // Edge table order by first row (insertion sort; edge lists are short)
+            int ymin = Integer.MAX_VALUE, ymax = Integer.MIN_VALUE;
+            for (int k = 0; k < edges; k++) {
+                int t = top[k], i = k - 1;
+                while (i >= 0 && top[order[i]] > t) {
+                    order[i + 1] = order[i];
+                    i--;
+                }
+                order[i + 1] = k;
+                ymin = Math.min(ymin, t);
+                ymax = Math.max(ymax, bot[k]);
+            }
+            ymin = Math.max(ymin, ras.clipTop);
+            ymax = Math.min(ymax, ras.clipBottom - 1);
 
-        // Truck motion with simple motion blur (multi-ghosts)
-        int truckStart = W + 120;
-        int truckEnd   = sx + 10;
-        int tx = (int) (truckStart + (truckEnd - truckStart) * u);
-        for (int i = 0; i < 6; i++) {
-            int off   = i * 14;
-            int alpha = (int) (220 * Math.pow(0.75, i));
-            drawTruck(tx + off + shakeX, sy - 10 + shakeY, alpha);
+            activeCount = 0;
+            int next = 0;
+            for (int y = ymin; y <= ymax; y++) {
+                // Drop finished edges, then bring in the ones starting on (or above) this row
+                int m = 0;
+                for (int i = 0; i < activeCount; i++) {
+                    if (bot[active[i]] >= y) active[m++] = active[i];
+                }
+                activeCount = m;
+                while (next < edges && top[order[next]] <= y) {
+                    int k = order[next++];
+                    if (bot[k] < y) continue;
+                    activate(k, y);
+                    active[activeCount++] = k;
+                }
+
+                // Keep active edges sorted by (polygon, x); nearly sorted, so insertion sort
+                for (int i = 1; i < activeCount; i++) {
+                    int k = active[i], j = i - 1;
+                    while (j >= 0 && (poly[active[j]] > poly[k]
+                            || (poly[active[j]] == poly[k] && q[active[j]] > q[k]))) {
+                        active[j + 1] = active[j];
+                        j--;
+                    }
+                    active[j + 1] = k;
+                }
+
+                emitRow(y);
+
+                for (int i = 0; i < activeCount; i++) {
+                    int k = active[i];
+                    q[k] += stepQ[k];
+                    rem[k] += stepRem[k];
+                    if (rem[k] >= den[k]) { rem[k] -= den[k]; q[k]++; }
+                }
+            }
+        }
+
+        // Spans of each polygon on row y, polygons in submission order
+        private void emitRow(int y) {
+            int i = 0;
+            while (i < activeCount) {
+                int id = poly[active[i]];
+                int end = i;
+                while (end < activeCount && poly[active[end]] == id) end++;
+                if (rule[id] == PolygonBatch.EVEN_ODD) {
+                    for (int k = i; k + 1 < end; k += 2) {
+                        ras.span(q[active[k]], q[active[k + 1]], y, pr[id], pg[id], pb[id], pa[id]);
+                    }
+                } else {
+                    int winding = 0, start = 0;
+                    for (int k = i; k < end; k++) {
+                        int e = active[k];
+                        if (winding == 0) start = q[e];
+                        winding += dir[e];
+                        if (winding == 0) ras.span(start, q[e], y, pr[id], pg[id], pb[id], pa[id]);
+                    }
+                }
+                i = end;
+            }
         }
     }
 
-    private void drawStickman(int x, int groundY) {
-        int headR = 16;
-        int headY = groundY - 88;
-        int headX = x;
+    // ================= Strokes =================
+    static final int CAP_ROUND = 0, CAP_BUTT = 1;
+    static final int JOIN_ROUND = 0, JOIN_BEVEL = 1;
 
-        // Head
-        fillCircle(headX, headY, headR, 240, 230, 220, 255);
+    // Polyline of radius rr (half the line width): the union of its segment bodies, caps and
+    // joins is filled in one sweep, so each covered pixel is blended exactly once
+    void stroke(int[] xs, int[] ys, int n, int rr, int cap, int join, int r, int g, int b, int a) {
+        stroke(xs, 0, ys, 0, n, rr, cap, join, r, g, b, a);
+    }
 
-        // Body + legs (thick lines)
-        thickLine(headX, headY + headR, headX, groundY - 30, 1, 235, 235, 235, 255);
-        thickLine(headX, groundY - 30, headX - 22, groundY, 1, 235, 235, 235, 255);
-        thickLine(headX, groundY - 30, headX + 22, groundY, 1, 235, 235, 235, 255);
+    void stroke(int[] xs, int xOff, int[] ys, int yOff, int n, int rr, int cap, int join,
+                int r, int g, int b, int a) {
+        if (n <= 0 || !markPolygon(xs, xOff, ys, yOff, n, Math.max(rr, 0))) return;
+        if (rec != null) { rec.stroke(xs, xOff, ys, yOff, n, rr, cap, join, r, g, b, a); return; }
+        stroker().stroke(xs, xOff, ys, yOff, n, rr, cap, join, r, g, b, a);
+    }
 
-        // Arms (Bezier swing)
-        qBezier(headX, headY + headR + 10, headX - 18, groundY - 70, headX - 34, groundY - 60,
-                235, 235, 235, 255);
-        qBezier(headX, headY + headR + 10, headX + 18, groundY - 70, headX + 34, groundY - 60,
-                235, 235, 235, 255);
+    // Thick Beziers: the flattened curve stroked with round caps and joins
+    void strokeQBezier(int x0, int y0, int x1, int y1, int x2, int y2, int rr,
+                       int r, int g, int b, int a) {
+        int n = curves().quad(x0, y0, x1, y1, x2, y2, pathX(), pathY);
+        stroke(pathX, 0, pathY, 0, n, rr, CAP_ROUND, JOIN_ROUND, r, g, b, a);
     }
 
-    private void drawTruck(int x, int y, int alpha) {
-        // Body rectangle
-        fillPolygon(new int[]{x, x + 180, x + 180, x},
-                    new int[]{y - 60, y - 60, y, y},
-                    4, 70, 130, 180, alpha);
+    void strokeCBezier(int x0, int y0, int x1, int y1, int x2, int y2, int x3, int y3, int rr,
+                       int r, int g, int b, int a) {
+        int n = curves().cubic(x0, y0, x1, y1, x2, y2, x3, y3, pathX(), pathY);
+        stroke(pathX, 0, pathY, 0, n, rr, CAP_ROUND, JOIN_ROUND, r, g, b, a);
+    }
 
-        // Cabin polygon
-        fillPolygon(new int[]{x + 130, x + 180, x + 180, x + 130},
-                    new int[]{y - 100, y - 100, y - 60, y - 60},
-                    4, 100, 170, 210, alpha);
+    // Polyline scratch (flattened curves, thickLine endpoints); only grows
+    private int[] pathX = new int[64], pathY = new int[64];
 
-        // Window polygon
-        fillPolygon(new int[]{x + 140, x + 175, x + 175, x + 140},
-                    new int[]{y - 95,  y - 95,  y - 70, y - 70},
-                    4, 200, 230, 250, (int) (alpha * 0.7));
+    // pathX, grown (with pathY) to hold any flattened curve
+    private int[] pathX() {
+        if (pathX.length < Curves.MAX_POINTS) {
+            pathX = new int[Curves.MAX_POINTS];
+            pathY = new int[Curves.MAX_POINTS];
+        }
+        return pathX;
+    }
 
-        // Wheels (filled circles)
-        fillCircle(x + 30,  y, 22, 40, 40, 40, alpha);
-        fillCircle(x + 100, y, 22, 40, 40, 40, alpha);
-        fillCircle(x + 170, y, 22, 40, 40, 40, alpha);
+    // Pixels of this view already blended by the current hairline (one bit each, rows from
+    // clipTop), and the ones to clear afterwards
+    private long[] seen;
+    private int[] seenList = new int[256];
 
-        // Wheel hubs
-        fillCircle(x + 30,  y, 9, 120, 120, 120, alpha);
-        fillCircle(x + 100, y, 9, 120, 120, 120, alpha);
-        fillCircle(x + 170, y, 9, 120, 120, 120, alpha);
+    // 1-pixel polyline: Bresenham per segment, but each pixel blended once, including the
+    // points segments share and anywhere the path crosses itself
+    private void hairline(int[] xs, int xOff, int[] ys, int yOff, int n, int r, int g, int b, int a) {
+        if (seen == null) seen = new long[(int) (((long) (clipBottom - clipTop) * W + 63) >>> 6)];
+        int count = 0;
+        for (int i = n == 1 ? 0 : 1; i < n; i++) {
+            int x0 = xs[xOff + Math.max(i - 1, 0)], y0 = ys[yOff + Math.max(i - 1, 0)];
+            int x1 = xs[xOff + i], y1 = ys[yOff + i];
+            int dx = Math.abs(x1 - x0);
+            int dy = Math.abs(y1 - y0);
+            int sx = x0 < x1 ? 1 : -1;
+            int sy = y0 < y1 ? 1 : -1;
+            int err = dx - dy;
+
+            int x = x0, y = y0;
+            while (true) {
+                if (x >= 0 && x < W && y >= clipTop && y < clipBottom) {
+                    int idx = (y - clipTop) * W + x;
+                    if ((seen[idx >>> 6] & (1L << idx)) == 0) {
+                        seen[idx >>> 6] |= 1L << idx;
+                        if (count == seenList.length) seenList = Arrays.copyOf(seenList, count * 2);
+                        seenList[count++] = idx;
+                        blend(x, y, r, g, b, a);
+                    }
+                }
+                if (x == x1 && y == y1) break;
+                int e2 = 2 * err;
+                if (e2 > -dy) { err -= dy; x += sx; }
+                if (e2 <  dx) { err += dx; y += sy; }
+            }
+        }
+        for (int i = 0; i < count; i++) seen[seenList[i] >>> 6] = 0;
     }
 
-    // --- Scene 2: fade to black ---
-    private void sceneFadeBlack(double u) {
-        clear(ARGB(255, 0, 0, 0)); // clear to black first (keeps fade predictable)
-        int a = (int) (255 * u);   // fade alpha
+    private Stroker stroker;
 
-        // Blend black rectangle over full frame using alpha 'a'
-        for (int y = 0; y < H; y++) {
-            for (int x = 0; x < W; x++) {
-                pblend(x, y, 0, 0, 0, a);
+    // Shape caches, per rasterizer so band workers never share them
+    private SpanTable.Cache spanTables;
+    private Curves curves;
+
+    private SpanTable.Cache spanTables() {
+        if (spanTables == null) spanTables = new SpanTable.Cache();
+        return spanTables;
+    }
+
+    private Curves curves() {
+        if (curves == null) curves = new Curves();
+        return curves;
+    }
+
+    private Stroker stroker() {
+        if (stroker == null) stroker = new Stroker(this);
+        return stroker;
+    }
+
+    // Stroke filler. A stroke is cut into convex pieces: a disc per round cap/join, a
+    // rectangle per segment body and a triangle per bevel join. Each piece covers one x
+    // interval per row; a row sweep (pieces ordered by first row, active list like
+    // PolygonFiller) collects those intervals, merges overlapping/touching ones and emits
+    // one span per merged run. Work is rows x active pieces plus covered pixels, instead of
+    // a disc of spans per pixel of length. A pixel is inside when its center is within
+    // sqrt(rr^2 + rr) of the path, which reproduces the midpoint discs of fillCircle.
+    private static final class Stroker {
+        private static final int DISC = 0, POLY = 1;
+
+        private final Rasterizer ras;
+
+        // Pieces: rows [top, bot]; discs centered (cx, cy); polygons with m vertices at
+        // vx/vy[4k ..]
+        private int pieces;
+        private int[] kind = new int[16], top = new int[16], bot = new int[16];
+        private int[] cx = new int[16], cy = new int[16], m = new int[16];
+        private double[] vx = new double[64], vy = new double[64];
+        private int[] order = new int[16], active = new int[16];
+
+        // Row intervals of the active pieces
+        private int[] lo = new int[16], hi = new int[16];
+
+        private int discR2;   // rr^2 + rr - 1: integer disc test dx^2 + dy^2 <= discR2
+        private double halfW; // sqrt(rr^2 + rr): body half width
+
+        Stroker(Rasterizer ras) {
+            this.ras = ras;
+        }
+
+        void stroke(int[] xs, int xOff, int[] ys, int yOff, int n, int rr, int cap, int join,
+                    int r, int g, int b, int a) {
+            if (rr < 1) {
+                ras.hairline(xs, xOff, ys, yOff, n, r, g, b, a);
+                return;
+            }
+            pieces = 0;
+            discR2 = rr * rr + rr - 1;
+            halfW = Math.sqrt(rr * rr + rr);
+
+            if (cap == CAP_ROUND) {
+                disc(xs[xOff], ys[yOff], rr);
+                if (n > 1) disc(xs[xOff + n - 1], ys[yOff + n - 1], rr);
+            }
+            for (int i = 1; i < n; i++) {
+                int x0 = xs[xOff + i - 1], y0 = ys[yOff + i - 1];
+                int x1 = xs[xOff + i], y1 = ys[yOff + i];
+                body(x0, y0, x1, y1);
+                if (i + 1 < n) {
+                    if (join == JOIN_ROUND) disc(x1, y1, rr);
+                    else bevel(x0, y0, x1, y1, xs[xOff + i + 1], ys[yOff + i + 1]);
+                }
             }
+            sweep(r, g, b, a);
         }
-    }
 
-    // --- Scene 3: Slime world ---
-    private void sceneSlime(double u) {
-        // Oceanic gradient background
-        for (int y = 0; y < H; y++) {
-            double k = y / (double) H;
-            int r = (int) (5 * (1 - k) + 20 * k);
-            int g = (int) (15 * (1 - k) + 80 * k);
-            int b = (int) (10 * (1 - k) + 60 * k);
-            for (int x = 0; x < W; x++) {
-                pix[y * W + x] = ARGB(255, r, g, b);
+        private int newPiece(int k, int t, int bt) {
+            if (pieces == kind.length) {
+                int c = pieces * 2;
+                kind = Arrays.copyOf(kind, c); top = Arrays.copyOf(top, c); bot = Arrays.copyOf(bot, c);
+                cx = Arrays.copyOf(cx, c); cy = Arrays.copyOf(cy, c); m = Arrays.copyOf(m, c);
+                vx = Arrays.copyOf(vx, 4 * c); vy = Arrays.copyOf(vy, 4 * c);
+                order = Arrays.copyOf(order, c); active = Arrays.copyOf(active, c);
+                lo = Arrays.copyOf(lo, c); hi = Arrays.copyOf(hi, c);
             }
+            int id = pieces++;
+            kind[id] = k;
+            top[id] = t;
+            bot[id] = bt;
+            return id;
         }
 
-        int cx = W / 2;
-        int cy = H / 2 + 30;
-        double rx0 = 130, ry0 = 110; // initial radii
+        private void disc(int x, int y, int rr) {
+            int id = newPiece(DISC, y - rr, y + rr);
+            cx[id] = x;
+            cy[id] = y;
+        }
 
-        // Breathing with smoothing to avoid pixel jitter along ellipse boundary
-        double pulse    = 0.08 * Math.sin(u * Math.PI * 6);
-        double rxTarget = rx0 * (1 + pulse + 0.25 * easeInOutSine(u));
-        double ryTarget = ry0 * (1 - pulse + 0.12 * easeOutQuad(u));
+        // Rectangle of half width halfW around the segment (nothing for a zero-length one)
+        private void body(int x0, int y0, int x1, int y1) {
+            int dx = x1 - x0, dy = y1 - y0;
+            if (dx == 0 && dy == 0) return;
+            double k = halfW / Math.hypot(dx, dy);
+            double nx = -dy * k, ny = dx * k;
+            poly(x0 + nx, y0 + ny, x1 + nx, y1 + ny, x1 - nx, y1 - ny, x0 - nx, y0 - ny, 4);
+        }
 
-        // Low-pass filter (temporal smoothing). Smaller s = smoother, more lag.
-        double s = 0.25;
-        rxSm = rxSm + s * (rxTarget - rxSm);
-        rySm = rySm + s * (ryTarget - rySm);
+        // Triangle closing the outer side of the turn at (x1, y1)
+        private void bevel(int x0, int y0, int x1, int y1, int x2, int y2) {
+            int ax = x1 - x0, ay = y1 - y0, bx = x2 - x1, by = y2 - y1;
+            long cross = (long) ax * by - (long) ay * bx;
+            if (cross == 0 || (ax == 0 && ay == 0) || (bx == 0 && by == 0)) return;
+            double s = cross > 0 ? -halfW : halfW; // outer side is away from the turn
+            double ka = s / Math.hypot(ax, ay), kb = s / Math.hypot(bx, by);
+            poly(x1, y1, x1 - ay * ka, y1 + ax * ka, x1 - by * kb, y1 + bx * kb, 0, 0, 3);
+        }
 
-        int rx = (int) Math.round(rxSm);
-        int ry = (int) Math.round(rySm);
+        private void poly(double x0, double y0, double x1, double y1, double x2, double y2,
+                          double x3, double y3, int count) {
+            double ymin = Math.min(Math.min(y0, y1), y2), ymax = Math.max(Math.max(y0, y1), y2);
+            if (count == 4) {
+                ymin = Math.min(ymin, y3);
+                ymax = Math.max(ymax, y3);
+            }
+            int id = newPiece(POLY, (int) Math.ceil(ymin), (int) Math.floor(ymax));
+            int o = 4 * id;
+            vx[o] = x0; vy[o] = y0;
+            vx[o + 1] = x1; vy[o + 1] = y1;
+            vx[o + 2] = x2; vy[o + 2] = y2;
+            vx[o + 3] = x3; vy[o + 3] = y3;
+            m[id] = count;
+        }
 
-        // Slime body: radial shading & rim light
-        slimeBody(cx, cy, rx, ry);
-
-        // Eyes (dark ellipses)
-        int ex   = (int) (rx * 0.40);
-        int eyOff = (int) (-ry * 0.18);
-        int eRx  = (int) (rx * 0.26);
-        int eRy  = (int) (ry * 0.20);
-        fillEllipse(cx - ex, cy + eyOff, eRx, eRy, 30, 40, 45, 255);
-        fillEllipse(cx + ex, cy + eyOff, eRx, eRy, 30, 40, 45, 255);
-
-        // Highlights (small circles)
-        int hx = (int) (cx - ex - eRx * 0.15);
-        int hy = (int) (cy + eyOff - eRy * 0.15);
-        int hr = 9 + (int) (3 * Math.sin(u * 15));
-        fillCircle(hx,              hy, hr, 255, 255, 255, 200);
-        fillCircle(hx + 2 * ex,     hy, hr, 255, 255, 255, 200);
-
-        // Smile (Bezier)
-        int mw = (int) (rx * (0.5 + 0.15 * Math.sin(u * 4 * Math.PI)));
-        int mh = (int) (ry * 0.18);
-        qBezier(cx - mw / 2, cy + (int) (ry * 0.3),
-                cx,          cy + (int) (ry * 0.3) + mh,
-                cx + mw / 2, cy + (int) (ry * 0.3), 40, 70, 45, 255);
+        private void sweep(int r, int g, int b, int a) {
+            int ymin = Integer.MAX_VALUE, ymax = Integer.MIN_VALUE;
+            for (int k = 0; k < pieces; k++) {
+                int t = top[k], i = k - 1;
+                while (i >= 0 && top[order[i]] > t) {
+                    order[i + 1] = order[i];
+                    i--;
+                }
+                order[i + 1] = k;
+                ymin = Math.min(ymin, t);
+                ymax = Math.max(ymax, bot[k]);
+            }
+            ymin = Math.max(ymin, ras.clipTop);
+            ymax = Math.min(ymax, ras.clipBottom - 1);
 
-        // Floating droplets (orbiting)
-        for (int i = 0; i < 16; i++) {
-            double ang = i * (2 * Math.PI / 16.0) + u * 6;
-            int px = cx + (int) ((rx + 18) * Math.cos(ang));
-            int py = cy + (int) ((ry + 18) * Math.sin(ang));
-            int pr = 6 + (int) (3 * Math.sin(u * 15 + i));
-            int al = 110 + (int) (110 * Math.sin(u * 15 + i));
-            al = Math.max(0, Math.min(255, al));
-            fillCircle(px, py, pr, 180, 250, 200, al);
+            int activeCount = 0, next = 0;
+            for (int y = ymin; y <= ymax; y++) {
+                int n = 0;
+                for (int i = 0; i < activeCount; i++) {
+                    if (bot[active[i]] >= y) active[n++] = active[i];
+                }
+                activeCount = n;
+                while (next < pieces && top[order[next]] <= y) {
+                    int k = order[next++];
+                    if (bot[k] >= y) active[activeCount++] = k;
+                }
+
+                // This row's intervals, kept sorted by left end
+                int count = 0;
+                for (int i = 0; i < activeCount; i++) {
+                    if (!interval(active[i], y, count)) continue;
+                    int l = lo[count], h = hi[count], j = count - 1;
+                    while (j >= 0 && lo[j] > l) {
+                        lo[j + 1] = lo[j];
+                        hi[j + 1] = hi[j];
+                        j--;
+                    }
+                    lo[j + 1] = l;
+                    hi[j + 1] = h;
+                    count++;
+                }
+
+                // Merge overlapping/touching runs: one span each
+                int i = 0;
+                while (i < count) {
+                    int l = lo[i], h = hi[i];
+                    for (i++; i < count && lo[i] <= h + 1; i++) h = Math.max(h, hi[i]);
+                    ras.span(l, h, y, r, g, b, a);
+                }
+            }
+        }
+
+        // Pixel columns of piece k on row y, into lo/hi[slot]; false when it misses the row
+        private boolean interval(int k, int y, int slot) {
+            if (kind[k] == DISC) {
+                int dy = y - cy[k];
+                int w2 = discR2 - dy * dy;
+                if (w2 < 0) return false;
+                int w = (int) Math.sqrt(w2);
+                lo[slot] = cx[k] - w;
+                hi[slot] = cx[k] + w;
+                return true;
+            }
+            int o = 4 * k, c = m[k];
+            double xmin = Double.POSITIVE_INFINITY, xmax = Double.NEGATIVE_INFINITY;
+            for (int e = 0; e < c; e++) {
+                int f = e + 1 == c ? 0 : e + 1;
+                double ax = vx[o + e], ay = vy[o + e], bx = vx[o + f], by = vy[o + f];
+                if ((y < ay && y < by) || (y > ay && y > by)) continue;
+                if (ay == by) {
+                    xmin = Math.min(xmin, Math.min(ax, bx));
+                    xmax = Math.max(xmax, Math.max(ax, bx));
+                } else {
+                    double x = ax + (y - ay) * (bx - ax) / (by - ay);
+                    xmin = Math.min(xmin, x);
+                    xmax = Math.max(xmax, x);
+                }
+            }
+            int l = (int) Math.ceil(xmin), h = (int) Math.floor(xmax);
+            if (l > h) return false;
+            lo[slot] = l;
+            hi[slot] = h;
+            return true;
         }
     }
 
-    private void slimeBody(int cx, int cy, int rx, int ry) {
+    // Quadratic Bezier: adaptive polyline (Curves), each pixel blended once
+    void qBezier(int x0, int y0, int x1, int y1, int x2, int y2,
+                 int r, int g, int b, int a) {
+        if (!mark(Math.min(x0, Math.min(x1, x2)), Math.min(y0, Math.min(y1, y2)),
+                  Math.max(x0, Math.max(x1, x2)), Math.max(y0, Math.max(y1, y2)))) return;
+        if (rec != null) { rec.qBezier(x0, y0, x1, y1, x2, y2, r, g, b, a); return; }
+        int n = curves().quad(x0, y0, x1, y1, x2, y2, pathX(), pathY);
+        hairline(pathX, 0, pathY, 0, n, r, g, b, a);
+    }
+
+    // Cubic Bezier, same way
+    void cBezier(int x0, int y0, int x1, int y1, int x2, int y2, int x3, int y3,
+                 int r, int g, int b, int a) {
+        if (!mark(Math.min(Math.min(x0, x1), Math.min(x2, x3)), Math.min(Math.min(y0, y1), Math.min(y2, y3)),
+                  Math.max(Math.max(x0, x1), Math.max(x2, x3)), Math.max(Math.max(y0, y1), Math.max(y2, y3)))) return;
+        if (rec != null) { rec.cBezier(x0, y0, x1, y1, x2, y2, x3, y3, r, g, b, a); return; }
+        int n = curves().cubic(x0, y0, x1, y1, x2, y2, x3, y3, pathX(), pathY);
+        hairline(pathX, 0, pathY, 0, n, r, g, b, a);
+    }
+
+    // Slime body: radial shading, off-center inner light & rim light
+    void slimeBody(int cx, int cy, int rx, int ry) {
+        if (!mark(cx - rx, cy - ry, cx + rx, cy + ry)) return;
+        if (rec != null) { rec.slimeBody(cx, cy, rx, ry); return; }
+
+        // Per-column terms for this radius: nx^2 and the x factor of the inner light
+        // exp(-2.5 (lx^2 + ly^2)) = exp(-2.5 lx^2) * exp(-2.5 ly^2)
+        int cols = 2 * rx + 1;
+        if (shadeNx2.length < cols) {
+            shadeNx2 = new double[cols];
+            shadeLight = new double[cols];
+        }
+        for (int xxp = -rx; xxp <= rx; xxp++) {
+            double nx = xxp / (double) rx;
+            double lx = (xxp - rx * 0.2) / (rx * 1.2);
+            shadeNx2[xxp + rx] = nx * nx;
+            shadeLight[xxp + rx] = Math.exp(-lx * lx * 2.5);
+        }
+
         // Fill ellipse with radial-like shading & off-center inner light
-        for (int yy = -ry; yy <= ry; yy++) {
+        for (int yy = Math.max(-ry, clipTop - cy), yEnd = Math.min(ry, clipBottom - 1 - cy); yy <= yEnd; yy++) {
+            int y = cy + yy;
             double yTerm = (yy * yy) / (double) (ry * ry);
             if (yTerm > 1) continue;
             int xx = (int) Math.floor(rx * Math.sqrt(1 - yTerm));
 
-            for (int xxp = -xx; xxp <= xx; xxp++) {
-                double nx = xxp / (double) rx;
-                double ny = yy  / (double) ry;
-                double d = Math.sqrt(nx * nx + ny * ny); // 0..1 distance from center
-
-                int r = (int) (20 + (70  - 20) * (1 - d));
-                int g = (int) (50 + (180 - 50) * (1 - d));
-                int b = (int) (30 + (140 - 30) * (1 - d));
+            double ny = yy / (double) ry;
+            double ly = (yy - ry * 0.3) / (ry * 1.2);
+            double ny2 = ny * ny;
+            double rowLight = Math.exp(-ly * ly * 2.5);
 
-                // subtle inner light (off-center)
-                double lx = (xxp - rx * 0.2) / (rx * 1.2);
-                double ly = (yy  - ry * 0.3) / (ry * 1.2);
-                double l  = Math.exp(-(lx * lx + ly * ly) * 2.5);
-
-                int rr = clamp(r + (int) (30 * l));
-                int gg = clamp(g + (int) (40 * l));
-                int bb = clamp(b + (int) (35 * l));
-
-                pblend(cx + xxp, cy + yy, rr, gg, bb, 230);
+            // Shade only the on-screen part of the row that nothing opaque covers later into
+            // rowBuf, then blend it as one span (per uncovered piece with occlusion)
+            int x0 = Math.max(-xx, -cx);
+            int x1 = Math.min(xx, W - 1 - cx);
+            if (x1 < x0) continue;
+            int pieces = occ == null ? 1 : open(y, cx + x0, cx + x1);
+            for (int p = 0; p < pieces; p++) {
+                if (occ != null) {
+                    x0 = gapLo[p] - cx;
+                    x1 = gapHi[p] - cx;
+                }
+                shadeRow(y, cx, rx, x0, x1, ny2, rowLight);
             }
         }
         // Rim light
-        ellipse(cx, cy, rx, ry, 180, 255, 220, 180);
+        ellipse0(cx, cy, rx, ry, 180, 255, 220, 180);
     }
 
-    private int clamp(int v) {
-        return (v < 0) ? 0 : Math.min(255, v);
+    // Columns [x0, x1] (relative to cx) of one slimeBody row
+    private void shadeRow(int y, int cx, int rx, int x0, int x1, double ny2, double rowLight) {
+        for (int xxp = x0; xxp <= x1; xxp++) {
+            // 1 - d, d = 0..1 distance from center (interpolated sqrt table)
+            double f = (shadeNx2[xxp + rx] + ny2) * SHADE_STEPS;
+            int i = Math.min((int) f, SHADE_STEPS - 1);
+            double k = ONE_MINUS_D[i] + (ONE_MINUS_D[i + 1] - ONE_MINUS_D[i]) * (f - i);
+
+            int r = (int) (20 + (70  - 20) * k);
+            int g = (int) (50 + (180 - 50) * k);
+            int b = (int) (30 + (140 - 30) * k);
+
+            // subtle inner light (off-center)
+            double l = shadeLight[xxp + rx] * rowLight;
+
+            int rr = Math.min(255, r + (int) (30 * l));
+            int gg = Math.min(255, g + (int) (40 * l));
+            int bb = Math.min(255, b + (int) (35 * l));
+
+            rowBuf[xxp - x0] = 0xFF000000 | (rr << 16) | (gg << 8) | bb;
+        }
+        covered += x1 - x0 + 1;
+        if (Blend.SPANS) {
+            Blend.row(pix, y * W + cx + x0, rowBuf, 0, x1 - x0 + 1, 230, format == OPAQUE);
+        } else {
+            for (int xxp = x0; xxp <= x1; xxp++) {
+                int c = rowBuf[xxp - x0];
+                blend(cx + xxp, y, (c >>> 16) & 255, (c >>> 8) & 255, c & 255, 230);
+            }
+        }
     }
 
     // ================= Post-process =================
-    private void vignette() {
-        int cx = W / 2;
-        int cy = H / 2;
-        double maxd = Math.hypot(cx, cy);
+    static final int    VIGNETTE_STRENGTH = 180; // alpha at the corners
+    static final double VIGNETTE_EXPONENT = 2.2; // falloff curve
+
+    void vignette() {
+        vignette(VIGNETTE_STRENGTH, VIGNETTE_EXPONENT);
+    }
 
-        for (int y = 0; y < H; y++) {
+    // Darken toward the corners; the per-pixel alpha comes from a cached mask
+    void vignette(int strength, double exponent) {
+        markAll();
+        if (rec != null) { rec.vignette(strength, exponent); return; }
+        covered += (long) (clipBottom - clipTop) * W;
+        byte[] mask = VignetteMask.get(W, H, strength, exponent).alpha;
+        if (Blend.SPANS) {
+            int off = clipTop * W;
+            Blend.mask(pix, off, (clipBottom - clipTop) * W, 0, 0, 0, mask, off, format == OPAQUE);
+            return;
+        }
+        for (int y = clipTop; y < clipBottom; y++) {
             for (int x = 0; x < W; x++) {
-                double d = Math.hypot(x - cx, y - cy) / maxd;
-                int a = (int) (180 * Math.pow(d, 2.2));
-                if (a > 0) pblend(x, y, 0, 0, 0, a);
+                int a = mask[y * W + x] & 255;
+                if (a > 0) blend(x, y, 0, 0, 0, a);
+            }
+        }
+    }
+
+    // Roughly one pixel in 'strength' gets a gray offset in [-10, +10]. The noise comes from
+    // GrainBank: texture 'frame' of the bank, tiled across the frame at a per-frame offset,
+    // and applied row by row in increasing x. Pixels are independent, so bands just clip rows.
+    void filmGrain(int strength, int frame) {
+        markAll();
+        if (rec != null) { rec.filmGrain(strength, frame); return; }
+        if (strength <= 0) return;
+        GrainBank bank = GrainBank.get(strength);
+        int t = Math.floorMod(frame, GrainBank.COUNT);
+        int[] rowStart = bank.rowStart[t];
+        short[] cols = bank.cols[t];
+        byte[] vals = bank.vals[t];
+        int ox = bank.offsetX(frame), oy = bank.offsetY(frame);
+
+        for (int y = clipTop; y < clipBottom; y++) {
+            int tr = (y + oy) & GrainBank.MASK;
+            int e0 = rowStart[tr], e1 = rowStart[tr + 1];
+            int o = y * W;
+            // texel column c lands on x = base + c for every tile base = k * TILE - ox
+            for (int base = -ox; base < W; base += GrainBank.TILE) {
+                for (int e = e0; e < e1; e++) {
+                    int x = base + cols[e];
+                    if (x < 0) continue;
+                    if (x >= W) break;
+                    int k = vals[e];
+                    int c = pix[o + x];
+                    pix[o + x] = (c & 0xFF000000)
+                            | clamp(((c >>> 16) & 255) + k) << 16
+                            | clamp(((c >>> 8) & 255) + k) << 8
+                            | clamp((c & 255) + k);
+                    covered++;
+                }
+            }
+        }
+    }
+}
+
+// Span compositing kernels: whole runs of pixels per call instead of one pblend() each.
+// Same integer formula as Rasterizer.pblend (results are bit-exact), with the bounds check,
+// the source terms and the /255 divisions hoisted out of the inner loop. With opaque set
+// (Rasterizer.OPAQUE targets) alpha is neither read nor computed, and red and blue share
+// one multiply and one division as two 16-bit lanes.
+// -Dslime.blend=pixel falls back to the per-pixel pblend() reference path.
+final class Blend {
+    static final boolean SPANS = !"pixel".equals(System.getProperty("slime.blend"));
+
+    private Blend() {}
+
+    // floor(v / 255), exact for 0 <= v <= 65534 (every blend term stays below 255*255 + 1)
+    static int div255(int v) {
+        return (v + 1 + (v >>> 8)) >>> 8;
+    }
+
+    // div255 on both 16-bit lanes of v (0x00RR00BB layout in, each lane <= 65279)
+    static int div255x2(int v) {
+        return ((v + 0x00010001 + ((v >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+    }
+
+    // Constant color, constant alpha over pix[off .. off+len)
+    static void span(int[] pix, int off, int len, int sr, int sg, int sb, int sa, boolean opaque) {
+        if (sa <= 0 || len <= 0) return;
+        if (sa >= 255) {
+            // pblend with sa = 255 reduces to a plain store
+            Arrays.fill(pix, off, off + len, Rasterizer.ARGB(255, sr, sg, sb));
+            return;
+        }
+        int inv = 255 - sa;
+        if (opaque) {
+            int prb = ((sr << 16) | sb) * sa, pg = sg * sa;
+            for (int i = off, end = off + len; i < end; i++) {
+                int dst = pix[i];
+                int rb = div255x2(prb + (dst & 0xFF00FF) * inv);
+                int g = div255(pg + ((dst >>> 8) & 255) * inv);
+                pix[i] = 0xFF000000 | rb | (g << 8);
+            }
+            return;
+        }
+        int pr = sr * sa, pg = sg * sa, pb = sb * sa;
+        for (int i = off, end = off + len; i < end; i++) {
+            int dst = pix[i];
+            int a = sa + div255(((dst >>> 24) & 255) * inv);
+            int r = div255(pr + ((dst >>> 16) & 255) * inv);
+            int g = div255(pg + ((dst >>> 8)  & 255) * inv);
+            int b = div255(pb + ( dst         & 255) * inv);
+            pix[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    // Per-pixel colors (src, alpha ignored), constant alpha
+    static void row(int[] pix, int off, int[] src, int srcOff, int len, int sa, boolean opaque) {
+        if (sa <= 0 || len <= 0) return;
+        int inv = 255 - sa;
+        if (opaque) {
+            for (int i = 0; i < len; i++) {
+                int s = src[srcOff + i];
+                int dst = pix[off + i];
+                int rb = div255x2((s & 0xFF00FF) * sa + (dst & 0xFF00FF) * inv);
+                int g = div255(((s >>> 8) & 255) * sa + ((dst >>> 8) & 255) * inv);
+                pix[off + i] = 0xFF000000 | rb | (g << 8);
+            }
+            return;
+        }
+        for (int i = 0; i < len; i++) {
+            int s = src[srcOff + i];
+            int dst = pix[off + i];
+            int a = sa + div255(((dst >>> 24) & 255) * inv);
+            int r = div255(((s >>> 16) & 255) * sa + ((dst >>> 16) & 255) * inv);
+            int g = div255(((s >>> 8)  & 255) * sa + ((dst >>> 8)  & 255) * inv);
+            int b = div255(( s         & 255) * sa + ( dst         & 255) * inv);
+            pix[off + i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    // pix[off ..] = a + (b - a) k/255 per channel, alpha included (b = color c when null).
+    // a and b are read at the same offsets; pix is only written.
+    static void lerp(int[] pix, int off, int[] a, int[] b, int c, int len, int k) {
+        int inv = 255 - k;
+        if (b == null) {
+            int crb = (c & 0xFF00FF) * k, cag = ((c >>> 8) & 0xFF00FF) * k;
+            for (int i = off; i < off + len; i++) {
+                int s = a[i];
+                pix[i] = div255x2(((s >>> 8) & 0xFF00FF) * inv + cag) << 8 | div255x2((s & 0xFF00FF) * inv + crb);
+            }
+            return;
+        }
+        for (int i = off; i < off + len; i++) {
+            int s = a[i], t = b[i];
+            pix[i] = div255x2(((s >>> 8) & 0xFF00FF) * inv + ((t >>> 8) & 0xFF00FF) * k) << 8
+                   | div255x2((s & 0xFF00FF) * inv + (t & 0xFF00FF) * k);
+        }
+    }
+
+    // Constant premultiplied pixel s scaled by global alpha ga over pix[off .. off+len)
+    static void sprite(int[] pix, int off, int len, int s, int ga, boolean opaque) {
+        int sa = s >>> 24;
+        if (sa == 255) {
+            // Opaque source: same as a constant-color span at alpha ga
+            span(pix, off, len, (s >>> 16) & 255, (s >>> 8) & 255, s & 255, ga, opaque);
+            return;
+        }
+        int ea = div255(sa * ga);
+        int inv = 255 - ea;
+        if (opaque) {
+            int prb = (s & 0xFF00FF) * ga, pg = ((s >>> 8) & 255) * ga;
+            for (int i = off, end = off + len; i < end; i++) {
+                int dst = pix[i];
+                int rb = div255x2(prb + (dst & 0xFF00FF) * inv);
+                int g = div255(pg + ((dst >>> 8) & 255) * inv);
+                pix[i] = 0xFF000000 | rb | (g << 8);
+            }
+            return;
+        }
+        int pr = ((s >>> 16) & 255) * ga, pg = ((s >>> 8) & 255) * ga, pb = (s & 255) * ga;
+        for (int i = off, end = off + len; i < end; i++) {
+            int dst = pix[i];
+            int a = ea + div255(((dst >>> 24) & 255) * inv);
+            int r = div255(pr + ((dst >>> 16) & 255) * inv);
+            int g = div255(pg + ((dst >>> 8)  & 255) * inv);
+            int b = div255(pb + ( dst         & 255) * inv);
+            pix[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    // Constant color, per-pixel alpha mask (unsigned bytes; 0 leaves the pixel untouched)
+    static void mask(int[] pix, int off, int len, int sr, int sg, int sb, byte[] alpha, int aOff, boolean opaque) {
+        if (opaque) {
+            int srb = (sr << 16) | sb;
+            for (int i = 0; i < len; i++) {
+                int sa = alpha[aOff + i] & 255;
+                if (sa == 0) continue;
+                int inv = 255 - sa;
+                int dst = pix[off + i];
+                int rb = div255x2(srb * sa + (dst & 0xFF00FF) * inv);
+                int g = div255(sg * sa + ((dst >>> 8) & 255) * inv);
+                pix[off + i] = 0xFF000000 | rb | (g << 8);
+            }
+            return;
+        }
+        for (int i = 0; i < len; i++) {
+            int sa = alpha[aOff + i] & 255;
+            if (sa == 0) continue;
+            int inv = 255 - sa;
+            int dst = pix[off + i];
+            int a = sa + div255(((dst >>> 24) & 255) * inv);
+            int r = div255(sr * sa + ((dst >>> 16) & 255) * inv);
+            int g = div255(sg * sa + ((dst >>> 8)  & 255) * inv);
+            int b = div255(sb * sa + ( dst         & 255) * inv);
+            pix[off + i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+}
+
+// Polygons filled together in one scanline sweep (Rasterizer.fillPolygons). Flat layout,
+// shared with the command stream: count, then per polygon n, rule, r, g, b, a, xs[n], ys[n].
+final class PolygonBatch {
+    static final int EVEN_ODD = 0, NON_ZERO = 1;
+
+    int[] data = new int[64];
+    private int size = 1;
+
+    PolygonBatch clear() {
+        data[0] = 0;
+        size = 1;
+        return this;
+    }
+
+    PolygonBatch add(int[] xs, int[] ys, int n, int rule, int r, int g, int b, int a) {
+        int p = begin(n, rule, r, g, b, a);
+        System.arraycopy(xs, 0, data, p, n);
+        System.arraycopy(ys, 0, data, p + n, n);
+        return this;
+    }
+
+    // Axis-aligned rectangle with corners (x0, y0) and (x1, y1)
+    PolygonBatch rect(int x0, int y0, int x1, int y1, int r, int g, int b, int a) {
+        int p = begin(4, EVEN_ODD, r, g, b, a);
+        data[p]     = x0; data[p + 1] = x1; data[p + 2] = x1; data[p + 3] = x0;
+        data[p + 4] = y0; data[p + 5] = y0; data[p + 6] = y1; data[p + 7] = y1;
+        return this;
+    }
+
+    // Writes the polygon header, returns where its xs start
+    private int begin(int n, int rule, int r, int g, int b, int a) {
+        if (size + 6 + 2 * n > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + 6 + 2 * n));
+        data[0]++;
+        int p = size;
+        data[p] = n; data[p + 1] = rule;
+        data[p + 2] = r; data[p + 3] = g; data[p + 4] = b; data[p + 5] = a;
+        size += 6 + 2 * n;
+        return p + 6;
+    }
+}
+
+// Persistent workers for band replay: the caller publishes a job (an array of tasks), wakes
+// the workers and runs tasks itself until none are left, then parks until the last one is
+// done. Tasks are claimed by CAS on one word holding the job's generation and next index,
+// so a worker that wakes late for a finished job cannot take one from the next. Nothing is
+// allocated per job (a ForkJoin join from a non-pool thread allocates a wait node). One job
+// runs at a time; concurrent callers queue on the pool's monitor.
+final class BandPool {
+    private static BandPool common;
+
+    private final Thread[] workers;
+    private final AtomicLong claim = new AtomicLong(); // generation << 32 | next task index
+    private final AtomicInteger done = new AtomicInteger();
+    private Runnable[] tasks;
+    private int count;
+    private Thread caller;
+    private volatile int generation;
+    private volatile Throwable failure;
+
+    private BandPool(int threads) {
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::loop, "band-worker-" + i);
+            t.setDaemon(true);
+            workers[i] = t;
+            t.start();
+        }
+    }
+
+    // Shared pool with one worker per core besides the caller's
+    static synchronized BandPool common() {
+        if (common == null) common = new BandPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        return common;
+    }
+
+    // Run every task (on the caller and the workers) and return once all have finished;
+    // the first failure is rethrown
+    synchronized void run(Runnable[] jobs) {
+        tasks = jobs;
+        count = jobs.length;
+        caller = Thread.currentThread();
+        failure = null;
+        done.set(0);
+        int gen = generation + 1;
+        claim.set((long) gen << 32);
+        generation = gen; // publishes the fields above
+        for (Thread w : workers) LockSupport.unpark(w);
+        work(gen);
+        while (done.get() < count) LockSupport.park(this);
+        tasks = null;
+        caller = null;
+        Throwable e = failure;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+    }
+
+    private void loop() {
+        int seen = 0;
+        while (true) {
+            int gen;
+            while ((gen = generation) == seen) LockSupport.park(this);
+            seen = gen;
+            work(gen);
+        }
+    }
+
+    // Claim and run tasks of job gen until it has none left
+    private void work(int gen) {
+        while (true) {
+            long v = claim.get();
+            if ((int) (v >>> 32) != gen || (int) v >= count) return;
+            if (!claim.compareAndSet(v, v + 1)) continue;
+            try {
+                tasks[(int) v].run();
+            } catch (Throwable e) {
+                if (failure == null) failure = e;
+            } finally {
+                if (done.incrementAndGet() == count) LockSupport.unpark(caller);
             }
         }
     }
+}
+
+// Recorded primitive stream: each public Rasterizer call becomes an opcode followed by
+// its int arguments in one growable int[]. replay() issues the same calls in the same
+// order, so any band view that replays the whole stream gets today's blend order.
+final class CommandBuffer {
+    static final int CLEAR = 1, PBLEND = 2, LINE = 3, THICK_LINE = 4, FILL_CIRCLE = 5, HSPAN = 6,
+                     ELLIPSE = 7, FILL_ELLIPSE = 8, FILL_POLYGON = 9, QBEZIER = 10, SLIME_BODY = 11,
+                     BLEND_FRAME = 12, VIGNETTE = 13, FILM_GRAIN = 14, FILL_POLYGONS = 15, STROKE = 16,
+                     BLIT = 17, CBEZIER = 18, TRANSITION = 19, GRADIENT = 20;
+    static final int OPCODES = 21;
+
+    static final String[] NAMES = {
+            "?", "clear", "pblend", "line", "thickLine", "fillCircle", "hspan", "ellipse",
+            "fillEllipse", "fillPolygon", "qBezier", "slimeBody", "blendFrame", "vignette", "filmGrain",
+            "fillPolygons", "stroke", "blit", "cBezier", "transition", "gradient"};
+
+    int[] data = new int[4096];
+    int size;
+
+    // Offset of each command, so occlude() can walk them back to front
+    private int[] starts = new int[256];
+    private int count;
+
+    // Coverage from occlude(), used by replay(r) until the next reset
+    private Occlusion occlusion;
+
+    // Render passes (FrameMetrics) the commands belong to: from offset markAt[k] on they
+    // are pass markPass[k] (-1 = none), so a timed replay can charge each pass its share
+    private int[] markAt = new int[32], markPass = new int[32];
+    private int marks;
+
+    // Sprites the commands refer to (by Sprite.id)
+    Sprite[] sprites = new Sprite[8];
+    int spriteCount;
+
+    void reset() {
+        size = 0;
+        count = 0;
+        marks = 0;
+        occlusion = null;
+        Arrays.fill(sprites, 0, spriteCount, null);
+        spriteCount = 0;
+    }
+
+    private Sprite sprite(int id) {
+        for (int i = 0; i < spriteCount; i++) {
+            if (sprites[i].id == id) return sprites[i];
+        }
+        throw new IllegalStateException("unknown sprite " + id);
+    }
+
+    private int[] ensure(int extra) {
+        if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+        starts[count++] = size;
+        if (size + extra > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+        return data;
+    }
+
+    // ================= Recording =================
+    void clear(int col) {
+        int[] d = ensure(2);
+        d[size++] = CLEAR; d[size++] = col;
+    }
 
-    private void filmGrain(int strength) {
-        Random r = new Random(1234);
-        int samples = W * H / strength;
-        for (int i = 0; i < samples; i++) {
-            int x = r.nextInt(W);
-            int y = r.nextInt(H);
-            int k = r.nextInt(21) - 10; // noise in [-10, +10]
+    void pblend(int x, int y, int r, int g, int b, int a) {
+        int[] d = ensure(7);
+        d[size++] = PBLEND; d[size++] = x; d[size++] = y;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    void line(int x0, int y0, int x1, int y1, int r, int g, int b, int a) {
+        int[] d = ensure(9);
+        d[size++] = LINE; d[size++] = x0; d[size++] = y0; d[size++] = x1; d[size++] = y1;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    void thickLine(int x0, int y0, int x1, int y1, int rr, int r, int g, int b, int a) {
+        int[] d = ensure(10);
+        d[size++] = THICK_LINE; d[size++] = x0; d[size++] = y0; d[size++] = x1; d[size++] = y1;
+        d[size++] = rr; d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    void fillCircle(int cx, int cy, int rr, int r, int g, int b, int a) {
+        int[] d = ensure(8);
+        d[size++] = FILL_CIRCLE; d[size++] = cx; d[size++] = cy; d[size++] = rr;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    void hspan(int x1, int x2, int y, int r, int g, int b, int a) {
+        int[] d = ensure(8);
+        d[size++] = HSPAN; d[size++] = x1; d[size++] = x2; d[size++] = y;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    void ellipse(int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
+        add9(ELLIPSE, xc, yc, rx, ry, r, g, b, a);
+    }
+
+    void fillEllipse(int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
+        add9(FILL_ELLIPSE, xc, yc, rx, ry, r, g, b, a);
+    }
+
+    private void add9(int op, int xc, int yc, int rx, int ry, int r, int g, int b, int a) {
+        int[] d = ensure(9);
+        d[size++] = op; d[size++] = xc; d[size++] = yc; d[size++] = rx; d[size++] = ry;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    // Layout: op, n, r, g, b, a, xs[n], ys[n]
+    void fillPolygon(int[] xs, int xOff, int[] ys, int yOff, int n, int r, int g, int b, int a) {
+        int[] d = ensure(6 + 2 * n);
+        d[size++] = FILL_POLYGON; d[size++] = n;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+        System.arraycopy(xs, xOff, d, size, n);
+        System.arraycopy(ys, yOff, d, size + n, n);
+        size += 2 * n;
+    }
+
+    // Layout: op, len, then len ints of PolygonBatch data
+    void fillPolygons(int[] batch, int off, int len) {
+        int[] d = ensure(2 + len);
+        d[size++] = FILL_POLYGONS; d[size++] = len;
+        System.arraycopy(batch, off, d, size, len);
+        size += len;
+    }
+
+    // Layout: op, n, rr, cap, join, r, g, b, a, xs[n], ys[n]
+    void stroke(int[] xs, int xOff, int[] ys, int yOff, int n, int rr, int cap, int join,
+                int r, int g, int b, int a) {
+        int[] d = ensure(9 + 2 * n);
+        d[size++] = STROKE; d[size++] = n; d[size++] = rr; d[size++] = cap; d[size++] = join;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+        System.arraycopy(xs, xOff, d, size, n);
+        System.arraycopy(ys, yOff, d, size + n, n);
+        size += 2 * n;
+    }
+
+    void cBezier(int x0, int y0, int x1, int y1, int x2, int y2, int x3, int y3, int r, int g, int b, int a) {
+        int[] d = ensure(13);
+        d[size++] = CBEZIER; d[size++] = x0; d[size++] = y0; d[size++] = x1; d[size++] = y1;
+        d[size++] = x2; d[size++] = y2; d[size++] = x3; d[size++] = y3;
+        d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    // Layout: op, sprite id, x, y, ga
+    void blit(Sprite sp, int x, int y, int ga) {
+        keep(sp);
+        int[] d = ensure(5);
+        d[size++] = BLIT; d[size++] = sp.id; d[size++] = x; d[size++] = y; d[size++] = ga;
+    }
+
+    // Layout: op, kind, from id, to id (-1 = none), color, amount
+    void transition(int kind, Sprite from, Sprite to, int color, int amount) {
+        keep(from);
+        if (to != null) keep(to);
+        int[] d = ensure(6);
+        d[size++] = TRANSITION; d[size++] = kind; d[size++] = from.id; d[size++] = to == null ? -1 : to.id;
+        d[size++] = color; d[size++] = amount;
+    }
+
+    // Add sp to the side table (once per frame)
+    private void keep(Sprite sp) {
+        int k = 0;
+        while (k < spriteCount && sprites[k] != sp) k++;
+        if (k == spriteCount) {
+            if (k == sprites.length) sprites = Arrays.copyOf(sprites, k * 2);
+            sprites[spriteCount++] = sp;
+        }
+    }
 
-            int idx = y * W + x;
-            int c = pix[idx];
+    void gradient(int c0, int c1) {
+        int[] d = ensure(3);
+        d[size++] = GRADIENT; d[size++] = c0; d[size++] = c1;
+    }
 
-            int a = (c >>> 24) & 255;
-            int rr = (c >>> 16) & 255;
-            int gg = (c >>> 8)  & 255;
-            int bb =  c         & 255;
+    void qBezier(int x0, int y0, int x1, int y1, int x2, int y2, int r, int g, int b, int a) {
+        int[] d = ensure(11);
+        d[size++] = QBEZIER; d[size++] = x0; d[size++] = y0; d[size++] = x1; d[size++] = y1;
+        d[size++] = x2; d[size++] = y2; d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    void slimeBody(int cx, int cy, int rx, int ry) {
+        int[] d = ensure(5);
+        d[size++] = SLIME_BODY; d[size++] = cx; d[size++] = cy; d[size++] = rx; d[size++] = ry;
+    }
+
+    void blendFrame(int r, int g, int b, int a) {
+        int[] d = ensure(5);
+        d[size++] = BLEND_FRAME; d[size++] = r; d[size++] = g; d[size++] = b; d[size++] = a;
+    }
+
+    void vignette(int strength, double exponent) {
+        long bits = Double.doubleToLongBits(exponent);
+        int[] d = ensure(4);
+        d[size++] = VIGNETTE; d[size++] = strength; d[size++] = (int) (bits >>> 32); d[size++] = (int) bits;
+    }
+
+    void filmGrain(int strength, int frame) {
+        int[] d = ensure(3);
+        d[size++] = FILM_GRAIN; d[size++] = strength; d[size++] = frame;
+    }
+
+    // ================= Occlusion =================
+    // Collect what each command leaves opaque, front to back, into occ: the last command that
+    // overwrites the whole frame hides everything before it, and spans drawn at alpha 255
+    // hide the earlier parts of their rows. replay(r) then draws only what stays visible.
+    void occlude(Occlusion occ) {
+        occ.reset();
+        Rasterizer c = occ.collector;
+        int[] d = data;
+        for (int k = count - 1; k >= 0; k--) {
+            int i = starts[k];
+            switch (d[i]) {
+                case CLEAR: case TRANSITION: case GRADIENT:
+                    occ.full = i;
+                    break;
+                case BLEND_FRAME:
+                    if (d[i + 4] >= 255) occ.full = i;
+                    break;
+                case FILL_CIRCLE: case HSPAN:
+                    if (d[i + 7] >= 255) collect(c, i);
+                    continue;
+                case FILL_ELLIPSE:
+                    if (d[i + 8] >= 255) collect(c, i);
+                    continue;
+                case FILL_POLYGON:
+                    if (d[i + 5] >= 255) collect(c, i);
+                    continue;
+                case FILL_POLYGONS:
+                    collect(c, i); // per-polygon colors; only the opaque spans are kept
+                    continue;
+                case THICK_LINE:
+                    if (d[i + 5] >= 1 && d[i + 9] >= 255) collect(c, i);
+                    continue;
+                case STROKE:
+                    if (d[i + 2] >= 1 && d[i + 8] >= 255) collect(c, i);
+                    continue;
+                default:
+                    continue;
+            }
+            break; // a full-frame overwrite: nothing earlier shows
+        }
+        occlusion = occ;
+    }
+
+    private void collect(Rasterizer c, int i) {
+        c.seq = i;
+        step(c, i);
+    }
+
+    // Commands recorded from here on belong to pass p (-1 = none)
+    void pass(int p) {
+        if (marks == markAt.length) {
+            markAt = Arrays.copyOf(markAt, marks * 2);
+            markPass = Arrays.copyOf(markPass, marks * 2);
+        }
+        markAt[marks] = size;
+        markPass[marks++] = p;
+    }
+
+    // ================= Replay =================
+    // Issue every recorded call on r (r.rec must be null); safe to run concurrently
+    // on several band views since the stream is only read. After occlude(), commands
+    // hidden by a later full-frame overwrite are skipped and the rest only fill the
+    // pixels no later opaque span covers.
+    void replay(Rasterizer r) {
+        replay(r, null);
+    }
+
+    // Same, adding the time spent on each pass's commands to passNanos (null = untimed)
+    void replay(Rasterizer r, long[] passNanos) {
+        int i = 0;
+        Occlusion occ = occlusion;
+        if (occ == null && (passNanos == null || marks == 0)) {
+            while (i < size) i = step(r, i);
+            return;
+        }
+        r.occ = occ;
+        try {
+            int m = 0, pass = -1;
+            long t0 = passNanos == null ? 0 : System.nanoTime();
+            for (int k = 0; k < count; k++) {
+                i = starts[k];
+                if (m < marks && markAt[m] <= i) {
+                    if (passNanos != null) t0 = charge(passNanos, pass, t0);
+                    while (m < marks && markAt[m] <= i) pass = markPass[m++];
+                }
+                if (occ != null && i < occ.full) continue;
+                r.seq = i;
+                step(r, i);
+            }
+            if (passNanos != null) charge(passNanos, pass, t0);
+        } finally {
+            r.occ = null;
+        }
+    }
+
+    // The time since t0 goes to the pass that was running; returns now
+    private static long charge(long[] passNanos, int pass, long t0) {
+        long t = System.nanoTime();
+        if (pass >= 0) passNanos[pass] += t - t0;
+        return t;
+    }
+
+    // Same, accumulating per-opcode call counts, covered pixels, culled primitives and time
+    // (FrameTrace replay)
+    void replay(Rasterizer r, long[] calls, long[] pixels, long[] culled, long[] nanos) {
+        int i = 0;
+        while (i < size) {
+            int op = data[i];
+            long px = r.covered, c = r.culled;
+            long t0 = System.nanoTime();
+            i = step(r, i);
+            nanos[op] += System.nanoTime() - t0;
+            pixels[op] += r.covered - px;
+            culled[op] += r.culled - c;
+            calls[op]++;
+        }
+    }
+
+    // Execute the command at i; returns the index of the next one
+    private int step(Rasterizer r, int i) {
+        int[] d = data;
+        switch (d[i]) {
+            case CLEAR:
+                r.clear(d[i + 1]);
+                return i + 2;
+            case PBLEND:
+                r.pblend(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6]);
+                return i + 7;
+            case LINE:
+                r.line(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6], d[i + 7], d[i + 8]);
+                return i + 9;
+            case THICK_LINE:
+                r.thickLine(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5],
+                            d[i + 6], d[i + 7], d[i + 8], d[i + 9]);
+                return i + 10;
+            case FILL_CIRCLE:
+                r.fillCircle(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6], d[i + 7]);
+                return i + 8;
+            case HSPAN:
+                r.hspan(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6], d[i + 7]);
+                return i + 8;
+            case ELLIPSE:
+                r.ellipse(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6], d[i + 7], d[i + 8]);
+                return i + 9;
+            case FILL_ELLIPSE:
+                r.fillEllipse(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6], d[i + 7], d[i + 8]);
+                return i + 9;
+            case FILL_POLYGON: {
+                int n = d[i + 1];
+                r.fillPolygon(d, i + 6, d, i + 6 + n, n, d[i + 2], d[i + 3], d[i + 4], d[i + 5]);
+                return i + 6 + 2 * n;
+            }
+            case FILL_POLYGONS:
+                r.fillPolygons(d, i + 2);
+                return i + 2 + d[i + 1];
+            case STROKE: {
+                int n = d[i + 1];
+                r.stroke(d, i + 9, d, i + 9 + n, n, d[i + 2], d[i + 3], d[i + 4],
+                         d[i + 5], d[i + 6], d[i + 7], d[i + 8]);
+                return i + 9 + 2 * n;
+            }
+            case CBEZIER:
+                r.cBezier(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6], d[i + 7], d[i + 8],
+                          d[i + 9], d[i + 10], d[i + 11], d[i + 12]);
+                return i + 13;
+            case BLIT:
+                r.blit(sprite(d[i + 1]), d[i + 2], d[i + 3], d[i + 4]);
+                return i + 5;
+            case TRANSITION:
+                r.transition(d[i + 1], sprite(d[i + 2]), d[i + 3] < 0 ? null : sprite(d[i + 3]), d[i + 4], d[i + 5]);
+                return i + 6;
+            case GRADIENT:
+                r.gradient(d[i + 1], d[i + 2]);
+                return i + 3;
+            case QBEZIER:
+                r.qBezier(d[i + 1], d[i + 2], d[i + 3], d[i + 4], d[i + 5], d[i + 6],
+                          d[i + 7], d[i + 8], d[i + 9], d[i + 10]);
+                return i + 11;
+            case SLIME_BODY:
+                r.slimeBody(d[i + 1], d[i + 2], d[i + 3], d[i + 4]);
+                return i + 5;
+            case BLEND_FRAME:
+                r.blendFrame(d[i + 1], d[i + 2], d[i + 3], d[i + 4]);
+                return i + 5;
+            case VIGNETTE:
+                r.vignette(d[i + 1], Double.longBitsToDouble(((long) d[i + 2] << 32) | (d[i + 3] & 0xFFFFFFFFL)));
+                return i + 4;
+            case FILM_GRAIN:
+                r.filmGrain(d[i + 1], d[i + 2]);
+                return i + 3;
+            default:
+                throw new IllegalStateException("bad opcode " + d[i] + " at " + i);
+        }
+    }
+}
+
+// Per-scanline opaque coverage of a recorded frame (see CommandBuffer.occlude): each row
+// holds a list of spans [lo, hi] tagged with the position of the command that draws them,
+// so a command only skips pixels that a later one overwrites. full is the position of the
+// last whole-frame overwrite (-1 = none). Built by a pixel-less collector rasterizer that
+// replays the opaque commands; read-only while the bands replay.
+final class Occlusion {
+    static final boolean ENABLED = !"false".equals(System.getProperty("slime.occlusion"));
+
+    final int W, H;
+    final Rasterizer collector;
+    int full = -1;
+
+    // Row y's spans: head[y], then next[] (-1 ends the list)
+    final int[] head;
+    int[] next = new int[256], lo = new int[256], hi = new int[256], seq = new int[256];
+    private int count;
+
+    Occlusion(int w, int h) {
+        this.W = w;
+        this.H = h;
+        this.head = new int[h];
+        Arrays.fill(head, -1);
+        this.collector = new Rasterizer(w, h, new int[0]);
+        collector.occ = this;
+        collector.collect = true;
+    }
+
+    void reset() {
+        if (count > 0) Arrays.fill(head, -1);
+        count = 0;
+        full = -1;
+        collector.damage.clear();
+    }
+
+    void add(int y, int x0, int x1, int s) {
+        if (count == next.length) {
+            int n = count * 2;
+            next = Arrays.copyOf(next, n);
+            lo = Arrays.copyOf(lo, n);
+            hi = Arrays.copyOf(hi, n);
+            seq = Arrays.copyOf(seq, n);
+        }
+        lo[count] = x0;
+        hi[count] = x1;
+        seq[count] = s;
+        next[count] = head[y];
+        head[y] = count++;
+    }
+}
+
+// Film grain noise: COUNT tileable TILE x TILE textures per strength, each texel holding
+// an offset in [-10, +10] with probability 1/strength (else none). Only the non-zero texels
+// are stored, per row in column order, so a grain pass reads one short row list per pixel
+// row regardless of frame size. Built once per strength, from fixed seeds.
+final class GrainBank {
+    static final int TILE = 128, MASK = TILE - 1;
+    static final int COUNT = 8;
+
+    private static final GrainBank[] cache = new GrainBank[4];
+    private static int next; // round-robin replacement slot
+
+    final int strength;
+    final int[][] rowStart = new int[COUNT][]; // row r's texels: [rowStart[r], rowStart[r + 1])
+    final short[][] cols = new short[COUNT][];
+    final byte[][] vals = new byte[COUNT][];
+
+    private GrainBank(int strength) {
+        this.strength = strength;
+        short[] c = new short[TILE * TILE];
+        byte[] v = new byte[TILE * TILE];
+        for (int t = 0; t < COUNT; t++) {
+            Random rnd = new Random(1234 + t);
+            int[] start = new int[TILE + 1];
+            int n = 0;
+            for (int y = 0; y < TILE; y++) {
+                start[y] = n;
+                for (int x = 0; x < TILE; x++) {
+                    if (rnd.nextInt(strength) != 0) continue;
+                    int k = rnd.nextInt(21) - 10; // noise in [-10, +10]
+                    if (k == 0) continue;
+                    c[n] = (short) x;
+                    v[n] = (byte) k;
+                    n++;
+                }
+            }
+            start[TILE] = n;
+            rowStart[t] = start;
+            cols[t] = Arrays.copyOf(c, n);
+            vals[t] = Arrays.copyOf(v, n);
+        }
+    }
+
+    // Per-frame tile offsets, so consecutive uses of a texture don't line up
+    int offsetX(int frame) {
+        return (frame * 0x9E3779B1 >>> 7) & MASK;
+    }
+
+    int offsetY(int frame) {
+        return (frame * 0x85EBCA6B >>> 11) & MASK;
+    }
+
+    static synchronized GrainBank get(int strength) {
+        for (GrainBank b : cache) {
+            if (b != null && b.strength == strength) return b;
+        }
+        GrainBank b = new GrainBank(strength);
+        cache[next] = b;
+        next = (next + 1) % cache.length;
+        return b;
+    }
+}
+
+// Vignette alpha per pixel: (int) (strength * (dist / maxDist)^exponent), 0..255.
+// Depends only on the resolution and the two settings, so it is built once and reused;
+// masks are immutable and shared by every renderer (a few sizes are kept for resizes).
+final class VignetteMask {
+    private static final VignetteMask[] cache = new VignetteMask[4];
+    private static int next; // round-robin replacement slot
+
+    final int w, h, strength;
+    final double exponent;
+    final byte[] alpha;
+
+    private VignetteMask(int w, int h, int strength, double exponent) {
+        this.w = w;
+        this.h = h;
+        this.strength = strength;
+        this.exponent = exponent;
+        this.alpha = new byte[w * h];
+
+        int cx = w / 2;
+        int cy = h / 2;
+        double maxd = Math.hypot(cx, cy);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                double d = Math.hypot(x - cx, y - cy) / maxd;
+                int a = (int) (strength * Math.pow(d, exponent));
+                alpha[y * w + x] = (byte) Rasterizer.clamp(a);
+            }
+        }
+    }
+
+    static synchronized VignetteMask get(int w, int h, int strength, double exponent) {
+        for (VignetteMask m : cache) {
+            if (m != null && m.w == w && m.h == h && m.strength == strength && m.exponent == exponent) {
+                return m;
+            }
+        }
+        VignetteMask m = new VignetteMask(w, h, strength, exponent);
+        cache[next] = m;
+        next = (next + 1) % cache.length;
+        return m;
+    }
+}
+
+// Half-width per row of a filled circle or ellipse: row cy + dy spans cx - half[dy + ry]
+// .. cx + half[dy + ry]. Circles take the widest span the midpoint iteration emits on each
+// row (so coverage matches the old four-spans-per-step fill, but every row is one span);
+// ellipses use the analytic floor(rx * sqrt(1 - dy^2 / ry^2)). Tables are immutable; each
+// rasterizer keeps its own Cache of the CAPACITY most recently used shapes (least recently
+// used out), so band workers fill without sharing a lock.
+final class SpanTable {
+    static final int CAPACITY = 64;
+
+    final boolean circle;
+    final int rx, ry;
+    final int[] half;
+
+    private SpanTable(boolean circle, int rx, int ry) {
+        this.circle = circle;
+        this.rx = rx;
+        this.ry = ry;
+        this.half = new int[2 * ry + 1];
+        if (circle) {
+            int x = 0, y = ry;
+            int d = 1 - ry;
+            while (x <= y) {
+                widen(y, x);
+                widen(x, y);
+                if (d < 0) {
+                    d += 2 * x + 3;
+                } else {
+                    d += 2 * (x - y) + 5;
+                    y--;
+                }
+                x++;
+            }
+        } else {
+            for (int dy = -ry; dy <= ry; dy++) {
+                double t = 1.0 - (dy * dy) / (double) (ry * ry);
+                half[dy + ry] = (int) Math.floor(rx * Math.sqrt(t));
+            }
+        }
+    }
+
+    // Rows +-dy reach at least +-w
+    private void widen(int dy, int w) {
+        half[ry + dy] = Math.max(half[ry + dy], w);
+        half[ry - dy] = Math.max(half[ry - dy], w);
+    }
+
+    // Confined to one rasterizer (and so to one thread at a time)
+    static final class Cache {
+        private final SpanTable[] tables = new SpanTable[CAPACITY];
+        private final long[] used = new long[CAPACITY]; // last-use tick per slot
+        private long tick;
+
+        SpanTable circle(int rr) {
+            return get(true, rr, rr);
+        }
+
+        SpanTable ellipse(int rx, int ry) {
+            return get(false, rx, ry);
+        }
+
+        private SpanTable get(boolean circle, int rx, int ry) {
+            int lru = 0;
+            for (int i = 0; i < CAPACITY; i++) {
+                SpanTable t = tables[i];
+                if (t != null && t.circle == circle && t.rx == rx && t.ry == ry) {
+                    used[i] = ++tick;
+                    return t;
+                }
+                if (used[i] < used[lru]) lru = i;
+            }
+            SpanTable t = new SpanTable(circle, rx, ry);
+            tables[lru] = t;
+            used[lru] = ++tick;
+            return t;
+        }
+    }
+}
+
+// Adaptive Bezier flattening. A uniform n-step polyline stays within max|B''| / (8 n^2) of
+// the curve, so n = sqrt(max|B''| / (8 TOLERANCE)), rounded up to a power of two 2^k. The
+// points are then stepped by forward differences in fixed point scaled by 2^(degree * k):
+// every difference is an exact integer and each point is one rounding shift, with no
+// polynomial or floating point per point. Paths are offsets from the first control point
+// (translation invariant), and are cached by the other control points relative to it, so
+// a curve that only moves (the stickman's arms) is flattened once; consecutive duplicate
+// points are dropped. Each rasterizer owns one (like its Stroker), so no lock is taken.
+final class Curves {
+    static final double TOLERANCE = 0.25; // max distance from the curve, in pixels
+    static final int MAX_LOG2 = 10;        // at most 1024 segments
+    static final int MAX_POINTS = (1 << MAX_LOG2) + 1;
+
+    private static final int CAPACITY = 64;
+    private final int[][] cache = new int[CAPACITY][];
+    private final int[][] keys = new int[CAPACITY][7]; // degree, then 4 or 6 coordinates
+    private final long[] used = new long[CAPACITY];
+    private long tick;
+
+    // Flattened paths are kept relative to the first point, so a curve that only moved hits
+    // the cache; quad/cubic write the points placed at (x0, y0) into xs/ys (room for
+    // MAX_POINTS) and return their count. Paths are copied out, so evicted ones are reused.
+
+    // Quadratic from (x0, y0) through control (x1, y1) to (x2, y2)
+    int quad(int x0, int y0, int x1, int y1, int x2, int y2, int[] xs, int[] ys) {
+        x1 -= x0; y1 -= y0; x2 -= x0; y2 -= y0;
+        int slot = find(2, x1, y1, x2, y2, 0, 0);
+        if (slot >= 0) return copy(cache[slot], x0, y0, xs, ys);
+        slot = -1 - slot;
+
+        // B(t) = b t^2 + c t with b = P2 - 2 P1, c = 2 P1; |B''| = 2 |b|
+        long bx = x2 - 2L * x1, by = y2 - 2L * y1, cx = 2L * x1, cy = 2L * y1;
+        int k = log2Steps(2 * Math.hypot(bx, by));
+        int shift = 2 * k;
+        // scaled by 2^(2k): f = B(0), df = B(h) - B(0), ddf = second difference (h = 2^-k)
+        long fx = 0, fy = 0;
+        long dfx = bx + (cx << k), dfy = by + (cy << k);
+        long ddfx = 2 * bx, ddfy = 2 * by;
+        int[] path = start(slot, 1 << k);
+        for (int i = 0; i < 1 << k; i++) {
+            fx += dfx;
+            fy += dfy;
+            dfx += ddfx;
+            dfy += ddfy;
+            add(path, round(fx, shift), round(fy, shift));
+        }
+        return copy(path, x0, y0, xs, ys);
+    }
+
+    // Cubic from (x0, y0) through controls (x1, y1), (x2, y2) to (x3, y3)
+    int cubic(int x0, int y0, int x1, int y1, int x2, int y2, int x3, int y3, int[] xs, int[] ys) {
+        x1 -= x0; y1 -= y0; x2 -= x0; y2 -= y0; x3 -= x0; y3 -= y0;
+        int slot = find(3, x1, y1, x2, y2, x3, y3);
+        if (slot >= 0) return copy(cache[slot], x0, y0, xs, ys);
+        slot = -1 - slot;
+
+        // B(t) = a t^3 + b t^2 + c t; |B''| <= 6 max(|P0 - 2P1 + P2|, |P1 - 2P2 + P3|)
+        long ax = x3 - 3L * x2 + 3L * x1, ay = y3 - 3L * y2 + 3L * y1;
+        long bx = 3L * (x2 - 2L * x1), by = 3L * (y2 - 2L * y1);
+        long cx = 3L * x1, cy = 3L * y1;
+        double dd = 6 * Math.max(Math.hypot(x2 - 2.0 * x1, y2 - 2.0 * y1),
+                                 Math.hypot(x1 - 2.0 * x2 + x3, y1 - 2.0 * y2 + y3));
+        int k = log2Steps(dd);
+        int shift = 3 * k;
+        // scaled by 2^(3k); h = 2^-k
+        long fx = 0, fy = 0;
+        long dfx = ax + (bx << k) + (cx << 2 * k), dfy = ay + (by << k) + (cy << 2 * k);
+        long ddfx = 6 * ax + (2 * bx << k), ddfy = 6 * ay + (2 * by << k);
+        long dddfx = 6 * ax, dddfy = 6 * ay;
+        int[] path = start(slot, 1 << k);
+        for (int i = 0; i < 1 << k; i++) {
+            fx += dfx;
+            fy += dfy;
+            dfx += ddfx;
+            dfy += ddfy;
+            ddfx += dddfx;
+            ddfy += dddfy;
+            add(path, round(fx, shift), round(fy, shift));
+        }
+        return copy(path, x0, y0, xs, ys);
+    }
+
+    // k with 2^k >= sqrt(maxSecond / (8 TOLERANCE)), clamped to [0, MAX_LOG2]
+    private static int log2Steps(double maxSecond) {
+        double n = Math.sqrt(maxSecond / (8 * TOLERANCE));
+        int k = 0;
+        while (k < MAX_LOG2 && (1 << k) < n) k++;
+        return k;
+    }
+
+    private static int round(long v, int shift) {
+        return (int) ((v + (shift == 0 ? 0 : 1L << (shift - 1))) >> shift);
+    }
+
+    // Layout {n, x0, y0, x1, y1, ...}; the slot's old array when it is big enough
+    private int[] start(int slot, int segments) {
+        int[] path = cache[slot];
+        if (path == null || path.length < 3 + 2 * segments) cache[slot] = path = new int[3 + 2 * segments];
+        path[0] = 1; // the origin
+        path[1] = path[2] = 0;
+        return path;
+    }
+
+    private static void add(int[] path, int x, int y) {
+        int n = path[0];
+        if (path[2 * n - 1] == x && path[2 * n] == y) return;
+        path[2 * n + 1] = x;
+        path[2 * n + 2] = y;
+        path[0] = n + 1;
+    }
+
+    private static int copy(int[] path, int x0, int y0, int[] xs, int[] ys) {
+        int n = path[0];
+        for (int i = 0; i < n; i++) {
+            xs[i] = x0 + path[2 * i + 1];
+            ys[i] = y0 + path[2 * i + 2];
+        }
+        return n;
+    }
+
+    // Slot holding this key, or -1 - the least recently used one, re-keyed for the caller to fill
+    private int find(int degree, int a, int b, int c, int d, int e, int f) {
+        int lru = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            int[] k = keys[i];
+            if (k[0] == degree && k[1] == a && k[2] == b && k[3] == c && k[4] == d
+                    && k[5] == e && k[6] == f) {
+                used[i] = ++tick;
+                return i;
+            }
+            if (used[i] < used[lru]) lru = i;
+        }
+        int[] k = keys[lru];
+        k[0] = degree; k[1] = a; k[2] = b; k[3] = c; k[4] = d; k[5] = e; k[6] = f;
+        used[lru] = ++tick;
+        return -1 - lru;
+    }
+}
+
+// Premultiplied ARGB image of a compound shape; pixel (0, 0) lands at anchor + (ox, oy).
+// Painted once with the ordinary primitives into a transparent buffer (source-over onto
+// transparent black leaves premultiplied color), then composited by Rasterizer.blit. Each
+// row is also kept as runs of one repeated non-transparent pixel, so a blit skips the
+// empty margins and composites a run like a constant-color span.
+final class Sprite {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    final int id; // unique per process (command streams and traces refer to sprites by id)
+    final int ox, oy, w, h;
+    final int[] pix;
+
+    // Row y's runs: [rowStart[y], rowStart[y + 1]) into runX / runLen; null for frames
+    final int[] rowStart;
+    final int[] runX, runLen;
+
+    Sprite(int ox, int oy, int w, int h, int[] pix) {
+        this(NEXT_ID.getAndIncrement(), ox, oy, w, h, pix);
+    }
+
+    Sprite(int id, int ox, int oy, int w, int h, int[] pix) {
+        this(id, ox, oy, w, h, pix, true);
+    }
+
+    // Whole opaque frame (transition stills): no run table, which would hold about one run
+    // per pixel of a shaded frame. Only read through pix (Rasterizer.transition), never blitted.
+    static Sprite frame(int w, int h, int[] pix) {
+        return frame(NEXT_ID.getAndIncrement(), w, h, pix);
+    }
+
+    static Sprite frame(int id, int w, int h, int[] pix) {
+        return new Sprite(id, 0, 0, w, h, pix, false);
+    }
+
+    private Sprite(int id, int ox, int oy, int w, int h, int[] pix, boolean runs) {
+        this.id = id;
+        this.ox = ox;
+        this.oy = oy;
+        this.w = w;
+        this.h = h;
+        this.pix = pix;
+        if (!runs) {
+            rowStart = runX = runLen = null;
+            return;
+        }
+
+        rowStart = new int[h + 1];
+        int n = runs(null, null); // count, then fill
+        runX = new int[n];
+        runLen = new int[n];
+        runs(runX, runLen);
+    }
+
+    private int runs(int[] xs, int[] lens) {
+        int n = 0;
+        for (int y = 0; y < h; y++) {
+            rowStart[y] = n;
+            int o = y * w;
+            for (int x = 0; x < w; ) {
+                int v = pix[o + x];
+                int end = x + 1;
+                while (end < w && pix[o + end] == v) end++;
+                if ((v >>> 24) != 0) {
+                    if (xs != null) {
+                        xs[n] = x;
+                        lens[n] = end - x;
+                    }
+                    n++;
+                }
+                x = end;
+            }
+        }
+        rowStart[h] = n;
+        return n;
+    }
+}
+
+// Sprites keyed by (kind, k0, k1), painted on first use. Keys must capture everything the
+// painter depends on, so a parameter change simply misses and paints a new sprite. The
+// cache is array-based (no boxing) and bounded by total pixel bytes: least recently used
+// sprites go first. One per renderer, used only by its render thread.
+final class SpriteCache {
+    interface Painter {
+        // Draw the shape with its anchor at (x, y) of dst
+        void paint(Rasterizer dst, int x, int y, int k0, int k1);
+    }
+
+    private static final int SLOTS = 64;
+
+    private final long capBytes;
+    private long bytes;
+    private final Sprite[] sprite = new Sprite[SLOTS];
+    private final int[] kind = new int[SLOTS], key0 = new int[SLOTS], key1 = new int[SLOTS];
+    private final long[] used = new long[SLOTS];
+    private long tick;
+
+    SpriteCache(long capBytes) {
+        this.capBytes = capBytes;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    // Sprite covering [x0, x1] x [y0, y1] around the anchor (inclusive)
+    Sprite get(int k, int k0, int k1, int x0, int y0, int x1, int y1, Painter painter) {
+        for (int i = 0; i < SLOTS; i++) {
+            if (sprite[i] != null && kind[i] == k && key0[i] == k0 && key1[i] == k1) {
+                used[i] = ++tick;
+                return sprite[i];
+            }
+        }
+        int w = x1 - x0 + 1, h = y1 - y0 + 1;
+        int[] px = new int[w * h];
+        painter.paint(new Rasterizer(w, h, px), -x0, -y0, k0, k1);
+        Sprite s = new Sprite(x0, y0, w, h, px);
+
+        long size = 4L * s.pix.length;
+        if (size > capBytes) return s; // too big to keep
+        int slot;
+        while ((slot = free()) < 0 || bytes + size > capBytes) evict();
+        sprite[slot] = s;
+        kind[slot] = k;
+        key0[slot] = k0;
+        key1[slot] = k1;
+        used[slot] = ++tick;
+        bytes += size;
+        return s;
+    }
+
+    private int free() {
+        for (int i = 0; i < SLOTS; i++) {
+            if (sprite[i] == null) return i;
+        }
+        return -1;
+    }
+
+    private void evict() {
+        int lru = -1;
+        for (int i = 0; i < SLOTS; i++) {
+            if (sprite[i] != null && (lru < 0 || used[i] < used[lru])) lru = i;
+        }
+        bytes -= 4L * sprite[lru].pix.length;
+        sprite[lru] = null;
+    }
+}
+
+// Timeline & scenes. render(t) depends only on t, never on previously rendered frames.
+class FrameRenderer {
+    // --- Timeline (seconds) ---
+    static final double T1 = 2.0;   // street & truck hit
+    static final double T2 = 3.0;   // transition (fade to black by default)
+    static final double T3 = 8.0;   // slime world (loop duration)
+
+    // --- Scene layout constants ---
+    // Scenes are laid out in a DESIGN x DESIGN space and mapped to the target with
+    // toX/toY (positions, stretched per axis) and toSize (lengths/radii, uniform by the
+    // smaller axis). At 600x600 every mapping is the identity.
+    static final int DESIGN = 600;
+
+    private static final int SKY_BASE_Y = 360;
+
+    private static final int ROAD_Y_TOP    = 430;
+    private static final int ROAD_Y_BOTTOM = 600;
+
+    private static final int DASH_WIDTH = 50;
+    private static final int DASH_GAP   = 30;   // step = width + gap = 80
+    private static final int DASH_Y     = 510;
+    private static final int DASH_THICK = 10;
+
+    private static final int GROUND_Y = ROAD_Y_TOP; // baseline ตัวละคร/รถ
+
+    // --- Film grain: one pixel in GRAIN_STRENGTH (-Dslime.grain, 0 = off), new pattern GRAIN_RATE times/s ---
+    private static final int    GRAIN_STRENGTH = Integer.getInteger("slime.grain", 10);
+    private static final double GRAIN_RATE     = 24.0;
+
+    // --- Sprites: compound shapes drawn once, then blitted (droplets/highlights are discs) ---
+    private static final long SPRITE_CACHE_BYTES = Long.getLong("slime.spriteKB", 8192) * 1024;
+    private static final int  SPRITE_TRUCK = 1, SPRITE_DISC = 2;
+    private final SpriteCache sprites = new SpriteCache(SPRITE_CACHE_BYTES);
+    private final SpriteCache.Painter truckPainter = this::paintTruck;
+    private final SpriteCache.Painter discPainter = (dst, x, y, rr, rgb) ->
+            dst.fillCircle(x, y, rr, (rgb >>> 16) & 255, (rgb >>> 8) & 255, rgb & 255, 255);
+
+    // --- Transition T1..T2: -Dslime.transition=fade|crossfade|wipe ---
+    // Works from stills of the last street frame (t = T1) and the first slime frame (t = T2),
+    // rendered once per target size/format by a throwaway renderer, so it stays a function of t.
+    private static final int TRANSITION = transitionKind(System.getProperty("slime.transition", "fade"));
+    private Sprite outgoing, incoming;
+    private int stillFormat;
+
+    // --- Background palettes (ARGB) ---
+    private static final int SKY_TOP      = Rasterizer.ARGB(255, 20, 25, 40);
+    private static final int SKY_BOTTOM   = Rasterizer.ARGB(255, 5, 10, 15);
+    private static final int SKYLINE_FAR  = Rasterizer.ARGB(255, 35, 45, 70);
+    private static final int SKYLINE_NEAR = Rasterizer.ARGB(255, 25, 35, 55);
+    private static final int ROAD_COLOR   = Rasterizer.ARGB(255, 40, 40, 45);
+    private static final int DASH_COLOR   = Rasterizer.ARGB(200, 220, 220, 140);
+    private static final int SEA_TOP      = Rasterizer.ARGB(255, 5, 15, 10);
+    private static final int SEA_BOTTOM   = Rasterizer.ARGB(255, 20, 80, 60);
+
+    // --- Retained static layers ---
+    // Rebuilt when the target resolution or the key changes; the key folds in
+    // the layout constants and palette each layer is painted from.
+    private static final long STREET_BG_KEY = Arrays.hashCode(new int[]{
+            SKY_BASE_Y, ROAD_Y_TOP, ROAD_Y_BOTTOM, DASH_WIDTH, DASH_GAP, DASH_Y, DASH_THICK,
+            SKY_TOP, SKY_BOTTOM, SKYLINE_FAR, SKYLINE_NEAR, ROAD_COLOR, DASH_COLOR});
+    private static final long SLIME_BG_KEY = Arrays.hashCode(new int[]{SEA_TOP, SEA_BOTTOM});
+
+    private final Layer streetBg = new Layer(this::paintStreetBackground);
+    private final Layer slimeBg  = new Layer(this::paintSlimeBackground);
+
+    // Per-frame scratch, reused so steady-state render(t) does not allocate
+    private final PolygonBatch polys = new PolygonBatch(); // the rasterizer copies it when recording
+    private final int[] legX = new int[3], legY = new int[3];
+    private int shakeX, shakeY;
+
+    // --- Slime smoothing (reduce shimmer) ---
+    // First-order low-pass filter sampled on a fixed SMOOTH_DT grid in scene time, not per
+    // rendered frame: "x += s*(target - x)" per step, i.e. a time constant of
+    // -dt / ln(1 - s) ~ 58 ms. It is evaluated as a truncated sum over the last SMOOTH_TAPS
+    // steps, so the smoothed radius is a function of u alone: identical motion at any frame
+    // rate or with skipped frames (deterministic, parallel-safe).
+    private static final double SMOOTH_S    = 0.25;
+    private static final double SMOOTH_DT   = 1.0 / 60.0; // seconds per filter step
+    private static final int    SMOOTH_TAPS = 32;         // 0.75^32 ~ 1e-4 residual weight
+
+    private Rasterizer r; // current target (see setTarget)
+    private final int W, H;
+
+    // Where the target deviated from its base layer after the last frame drawn into it
+    private final DirtyRegion prevDamage = new DirtyRegion();
+    // Change from the previous rendered frame (whichever buffer it went to): its foreground
+    // ∪ this frame's, or everything if the background changed
+    private final DirtyRegion frameDamage = new DirtyRegion();
+    private final DirtyRegion lastDrawn = new DirtyRegion();
+    private Layer lastLayer;
+    private boolean fullRestore;
+
+    // --- Band-parallel replay (no bands = draw directly on the calling thread) ---
+    private final CommandBuffer cmds = new CommandBuffer();
+    private BandTask[] bands = new BandTask[0];
+
+    // --- Opaque occlusion (-Dslime.occlusion=false turns it off): frames are recorded and
+    // replayed so commands skip pixels a later opaque one overwrites (see Occlusion) ---
+    private final Occlusion occlusion;
+
+    // --- Trace capture (see FrameTrace) ---
+    private FrameTrace.Writer trace;
+    private Layer frameLayer; // background layer restored by the current frame
+
+    // --- Pass timing (see FrameMetrics); null = off, costs one field test per pass ---
+    private volatile FrameMetrics metrics;
+    private volatile boolean hud;
+    private FrameMetrics m; // metrics snapshot for the frame being rendered
+    // Recorded frames: per pass, encoding time (plus the replay when serial) and whether it ran
+    private final long[] passNanos = new long[FrameMetrics.PASSES];
+    private final boolean[] passSeen = new boolean[FrameMetrics.PASSES];
+    private final Hud hudOverlay = new Hud();
+
+    FrameRenderer(Rasterizer r) {
+        this.r = r;
+        this.W = r.W;
+        this.H = r.H;
+        this.occlusion = Occlusion.ENABLED ? new Occlusion(W, H) : null;
+    }
+
+    Rasterizer target() {
+        return r;
+    }
+
+    // Render the following frames into t (same size). Damage and base layer live on the
+    // rasterizer, so several buffers can be rotated through one renderer (see SwapChain).
+    void setTarget(Rasterizer t) {
+        if (t.W != W || t.H != H) {
+            throw new IllegalArgumentException("target is " + t.W + "x" + t.H + ", renderer is " + W + "x" + H);
+        }
+        r = t;
+        attachBands();
+    }
+
+    // Regions of the frame that changed in the last render(t)
+    DirtyRegion damage() {
+        return frameDamage;
+    }
+
+    // Append every rendered frame's layer + command stream to w (null stops capture)
+    void setTrace(FrameTrace.Writer w) {
+        trace = w;
+    }
+
+    // Record per-pass/per-scene latencies into fm (null turns timing off)
+    void setMetrics(FrameMetrics fm) {
+        metrics = fm;
+    }
+
+    FrameMetrics metrics() {
+        return metrics;
+    }
+
+    // Draw the timing overlay into each frame (only while metrics are set)
+    void setHud(boolean on) {
+        hud = on;
+    }
+
+    boolean hud() {
+        return hud;
+    }
+
+    // Split the frame into n horizontal bands replayed on the shared BandPool
+    void setBands(int n) {
+        n = Math.max(1, Math.min(n, H));
+        bands = new BandTask[n > 1 ? n : 0];
+        for (int i = 0; i < bands.length; i++) bands[i] = new BandTask(cmds);
+        attachBands();
+    }
+
+    private void attachBands() {
+        if (bands.length == 0) return;
+        Rasterizer[] views = r.bands(bands.length);
+        for (int i = 0; i < bands.length; i++) bands[i].view = views[i];
+    }
+
+    // ================= Scenes =================
+    private double easeOutQuad(double t) {
+        return t * (2 - t);
+    }
+
+    private double easeInOutSine(double t) {
+        return 0.5 * (1 - Math.cos(Math.PI * t));
+    }
+
+    // ================= Design space =================
+    private int toX(int v) {
+        return Math.floorDiv(v * W, DESIGN);
+    }
+
+    private int toY(int v) {
+        return Math.floorDiv(v * H, DESIGN);
+    }
+
+    // Never collapses a non-zero length to nothing
+    private int toSize(int v) {
+        return v == 0 ? 0 : Math.max(1, v * Math.min(W, H) / DESIGN);
+    }
+
+    private double sizeScale() {
+        return Math.min(W, H) / (double) DESIGN;
+    }
+
+    // Scene shown at time t: 0 street, 1 fade, 2 slime
+    static int sceneOf(double t) {
+        return t <= T1 ? 0 : t <= T2 ? 1 : 2;
+    }
+
+    void render(double t) {
+        FrameMetrics m = this.m = metrics;
+        long f0 = m == null ? 0 : m.beginFrame(sceneOf(t));
+        long c0 = r.culled, b0 = m == null ? 0 : bandSkipped();
+        long d0 = m == null ? 0 : pixelsDrawn(), o0 = m == null ? 0 : pixelsOccluded();
+        prevDamage.set(r.damage);
+        r.damage.clear();
+        fullRestore = false;
+        frameLayer = null;
+
+        if (bands.length == 0 && trace == null && occlusion == null) {
+            renderFrame(t);
+        } else {
+            // Record the frame, then let each band replay all of it clipped to its rows.
+            // Layer restores still write pix directly; they run before any drawing.
+            cmds.reset();
+            r.rec = cmds;
+            try {
+                renderFrame(t);
+            } finally {
+                r.rec = null;
+            }
+            if (trace != null) trace.frame(t, frameLayer, cmds);
+            // Drawing lands here; each scene pass is then charged its share (see passEnd)
+            long p0 = passStart(FrameMetrics.REPLAY);
+            if (occlusion != null) cmds.occlude(occlusion);
+            if (bands.length == 0) {
+                cmds.replay(r, m == null ? null : passNanos);
+            } else {
+                for (BandTask b : bands) b.timed = m != null;
+                BandPool.common().run(bands);
+            }
+            passEnd(FrameMetrics.REPLAY, p0);
+            if (m != null) chargePasses();
+        }
+
+        frameDamage.set(lastDrawn);
+        frameDamage.addAll(r.damage);
+        if (fullRestore || frameLayer != lastLayer) frameDamage.add(0, 0, W - 1, H - 1);
+        lastDrawn.set(r.damage);
+        lastLayer = frameLayer;
+        if (m != null) {
+            m.culled[FrameMetrics.CULL_PRIMITIVE] += r.culled - c0;
+            m.culled[FrameMetrics.CULL_BAND] += bandSkipped() - b0;
+            m.occlusion(pixelsDrawn() - d0, pixelsOccluded() - o0);
+            m.endFrame(f0);
+        }
+    }
+
+    // Primitives the band views skipped so far as outside their rows
+    private long bandSkipped() {
+        long n = 0;
+        for (BandTask b : bands) n += b.view.culled;
+        return n;
+    }
+
+    // Pixels written, and pixels skipped as occluded, so far by the target and its band views
+    private long pixelsDrawn() {
+        long n = r.covered;
+        for (BandTask b : bands) n += b.view.covered;
+        return n;
+    }
+
+    private long pixelsOccluded() {
+        long n = r.occluded;
+        for (BandTask b : bands) n += b.view.occluded;
+        return n;
+    }
+
+    // Do a compound shape's bounds (inclusive) touch the target? If not, none of its
+    // primitives are issued at all.
+    private boolean onScreen(int kind, int x0, int y0, int x1, int y1) {
+        if (r.visible(x0, y0, x1, y1)) return true;
+        if (m != null) m.culled[kind]++;
+        return false;
+    }
+
+    private void renderFrame(double t) {
+        renderScene(t);
+        if (hud && m != null) hudOverlay.draw(r, m); // shows the frames before this one
+    }
+
+    // While recording, a pass only encodes commands: it marks the stream instead, and is
+    // recorded after the replay (chargePasses)
+    private long passStart(int pass) {
+        if (m == null) return 0;
+        if (r.rec == null) return m.begin(pass);
+        cmds.pass(pass);
+        return System.nanoTime();
+    }
+
+    private void passEnd(int pass, long t0) {
+        if (m == null) return;
+        if (r.rec == null) {
+            m.end(pass, t0);
+            return;
+        }
+        cmds.pass(-1);
+        passNanos[pass] += System.nanoTime() - t0;
+        passSeen[pass] = true;
+    }
+
+    // Each pass recorded this frame takes its encoding time plus its replay: on this thread,
+    // or the slowest band's share when banded (the bands run side by side)
+    private void chargePasses() {
+        for (int p = 0; p < FrameMetrics.PASSES; p++) {
+            long replay = 0;
+            for (BandTask b : bands) {
+                replay = Math.max(replay, b.nanos[p]);
+                b.nanos[p] = 0;
+            }
+            if (passSeen[p]) m.record(p, passNanos[p] + replay);
+            passNanos[p] = 0;
+            passSeen[p] = false;
+        }
+    }
+
+    private void renderScene(double t) {
+        if (t <= T1) {
+            sceneStreet(t / T1);
+            long p0 = passStart(FrameMetrics.VIGNETTE);
+            r.vignette();
+            passEnd(FrameMetrics.VIGNETTE, p0);
+            p0 = passStart(FrameMetrics.FILM_GRAIN);
+            r.filmGrain(GRAIN_STRENGTH, (int) (t * GRAIN_RATE)); // grain only in street scene
+            passEnd(FrameMetrics.FILM_GRAIN, p0);
+        } else if (t <= T2) {
+            double u = (t - T1) / (T2 - T1);
+            long p0 = passStart(FrameMetrics.FADE);
+            sceneTransition(u); // the stills already carry the street's vignette and grain
+            passEnd(FrameMetrics.FADE, p0);
+        } else {
+            double u = (t - T2) / (T3 - T2);
+            sceneSlime(u);
+            // no grain/vignette in slime scene for stability
+        }
+    }
+
+    // Compute impact shake offset (only for character/vehicle) into shakeX/shakeY
+    private void impactShake(double u) {
+        if (u <= 0.85) {
+            shakeX = shakeY = 0;
+            return;
+        }
+        double k = (u - 0.85) / 0.15;
+        shakeX = (int) (Math.sin(60 * k) * 8);
+        shakeY = (int) (Math.cos(50 * k) * 6);
+    }
+
+    // --- Scene 1: street, stickman, truck with motion blur, impact shake ---
+    private void sceneStreet(double u) {
+        // Static background: sky, skyline, road & dashes
+        long p0 = passStart(FrameMetrics.BACKGROUND);
+        fullRestore |= streetBg.restore(r, STREET_BG_KEY, prevDamage);
+        frameLayer = streetBg;
+        passEnd(FrameMetrics.BACKGROUND, p0);
+
+        // Compute shake (apply only to foreground objects)
+        impactShake(u);
+
+        // Stickman walking (design units; the draw helpers map to the target)
+        int sy = GROUND_Y;
+        int sx = 100 + (int) (180 * u);
+        p0 = passStart(FrameMetrics.STICKMAN);
+        drawStickman(sx + shakeX, sy + shakeY);
+        passEnd(FrameMetrics.STICKMAN, p0);
+
+        // Truck motion with simple motion blur (multi-ghosts)
+        int truckStart = DESIGN + 120;
+        int truckEnd   = sx + 10;
+        int tx = (int) (truckStart + (truckEnd - truckStart) * u);
+        p0 = passStart(FrameMetrics.TRUCK);
+        for (int i = 0; i < 6; i++) {
+            int off   = i * 14;
+            int alpha = (int) (220 * Math.pow(0.75, i));
+            drawTruck(tx + shakeX, sy - 10 + shakeY, toSize(off), alpha); // ghosts trail by truck-sized steps
+        }
+        passEnd(FrameMetrics.TRUCK, p0);
+    }
+
+    // Street background layer: sky gradient, parallax skyline, road & dashed center line
+    private void paintStreetBackground(Rasterizer dst) {
+        int W = dst.W;
+
+        // Background gradient (stable; skips what the skyline and road cover)
+        dst.gradient(SKY_TOP, SKY_BOTTOM);
+
+        // Parallax skyline (polygons)
+        int base = SKY_BASE_Y;
+        int[] xs1 = {0, 80, 120, 200, 240, 320, 380, 460, 520, 600, 600, 0};
+        int[] ys1 = {base, 300, 330, 280, 340, 310, 290, 320, 300, 280, ROAD_Y_BOTTOM, ROAD_Y_BOTTOM};
+        PolygonBatch batch = polys.clear();
+        batch.add(toXs(xs1), toYs(ys1), xs1.length, PolygonBatch.EVEN_ODD,
+                  (SKYLINE_FAR >>> 16) & 255, (SKYLINE_FAR >>> 8) & 255, SKYLINE_FAR & 255, SKYLINE_FAR >>> 24);
+
+        int[] xs2 = {0, 60, 140, 180, 260, 300, 360, 420, 480, 540, 600, 600, 0};
+        int[] ys2 = {base + 30, 340, 350, 330, 360, 340, 355, 340, 360, 335, 350, ROAD_Y_BOTTOM, ROAD_Y_BOTTOM};
+        batch.add(toXs(xs2), toYs(ys2), xs2.length, PolygonBatch.EVEN_ODD,
+                  (SKYLINE_NEAR >>> 16) & 255, (SKYLINE_NEAR >>> 8) & 255, SKYLINE_NEAR & 255, SKYLINE_NEAR >>> 24);
+
+        // Road
+        batch.rect(0, toY(ROAD_Y_TOP), W, toY(ROAD_Y_BOTTOM),
+                   (ROAD_COLOR >>> 16) & 255, (ROAD_COLOR >>> 8) & 255, ROAD_COLOR & 255, ROAD_COLOR >>> 24);
+
+        // Dashed center line
+        for (int x = 0; x < DESIGN; x += (DASH_WIDTH + DASH_GAP)) {
+            batch.rect(toX(x), toY(DASH_Y), toX(x + DASH_WIDTH), toY(DASH_Y + DASH_THICK),
+                       (DASH_COLOR >>> 16) & 255, (DASH_COLOR >>> 8) & 255, DASH_COLOR & 255, DASH_COLOR >>> 24);
+        }
+        dst.fillPolygons(batch);
+    }
+
+    // In-place design -> target mapping of polygon coordinates
+    private int[] toXs(int[] xs) {
+        for (int i = 0; i < xs.length; i++) xs[i] = toX(xs[i]);
+        return xs;
+    }
+
+    private int[] toYs(int[] ys) {
+        for (int i = 0; i < ys.length; i++) ys[i] = toY(ys[i]);
+        return ys;
+    }
+
+    // Anchored at the design-space foot position; the figure itself scales uniformly
+    private void drawStickman(int designX, int designGroundY) {
+        int x = toX(designX), groundY = toY(designGroundY);
+        int headR = toSize(16);
+        int headY = groundY - toSize(88);
+        int headX = x;
+        int hip = groundY - toSize(30);
+        int th = toSize(1);
+        int reach = Math.max(headR, toSize(34)) + th; // arms, legs or head, whichever is wider
+        if (!onScreen(FrameMetrics.CULL_STICKMAN, headX - reach, headY - headR, headX + reach, groundY + th)) return;
+
+        // Head
+        r.fillCircle(headX, headY, headR, 240, 230, 220, 255);
+
+        // Body, then both legs as one foot-hip-foot stroke
+        r.thickLine(headX, headY + headR, headX, hip, th, 235, 235, 235, 255);
+        legX[0] = headX - toSize(22); legY[0] = groundY;
+        legX[1] = headX;              legY[1] = hip;
+        legX[2] = headX + toSize(22); legY[2] = groundY;
+        r.stroke(legX, legY, 3, th, Rasterizer.CAP_ROUND, Rasterizer.JOIN_ROUND, 235, 235, 235, 255);
+
+        // Arms (Bezier swing)
+        int shoulder = headY + headR + toSize(10);
+        r.qBezier(headX, shoulder, headX - toSize(18), groundY - toSize(70), headX - toSize(34), groundY - toSize(60),
+                  235, 235, 235, 255);
+        r.qBezier(headX, shoulder, headX + toSize(18), groundY - toSize(70), headX + toSize(34), groundY - toSize(60),
+                  235, 235, 235, 255);
+    }
+
+    // Anchored at the design-space rear-wheel baseline (+ dx target pixels); the truck
+    // itself scales uniformly
+    private void drawTruck(int designX, int designY, int dx, int alpha) {
+        int x = toX(designX) + dx, y = toY(designY);
+        int wheel = toSize(22);
+        int x0 = Math.min(0, toSize(30) - wheel), y0 = -toSize(100), x1 = Math.max(toSize(180), toSize(170) + wheel);
+        if (!onScreen(FrameMetrics.CULL_TRUCK, x + x0, y + y0, x + x1, y + wheel)) return;
+        // The sizes depend only on the target size, which is the key
+        Sprite truck = sprites.get(SPRITE_TRUCK, r.W, r.H, x0, y0, x1, wheel, truckPainter);
+        r.blit(truck, x, y, alpha);
+    }
+
+    // Opaque truck with its rear-wheel baseline at (x, y); ghosts fade it as a whole
+    private void paintTruck(Rasterizer dst, int x, int y, int w, int h) {
+        int s30 = toSize(30), s60 = toSize(60), s70 = toSize(70), s95 = toSize(95), s100 = toSize(100);
+        int s130 = toSize(130), s140 = toSize(140), s170 = toSize(170), s175 = toSize(175), s180 = toSize(180);
+
+        // Body, cabin and window in one sweep
+        dst.fillPolygons(polys.clear()
+                .rect(x,        y - s60,  x + s180, y,       70, 130, 180, 255)
+                .rect(x + s130, y - s100, x + s180, y - s60, 100, 170, 210, 255)
+                .rect(x + s140, y - s95,  x + s175, y - s70, 200, 230, 250, (int) (255 * 0.7)));
+
+        // Wheels (filled circles)
+        int wheel = toSize(22), hub = toSize(9);
+        dst.fillCircle(x + s30,  y, wheel, 40, 40, 40, 255);
+        dst.fillCircle(x + s100, y, wheel, 40, 40, 40, 255);
+        dst.fillCircle(x + s170, y, wheel, 40, 40, 40, 255);
+
+        // Wheel hubs
+        dst.fillCircle(x + s30,  y, hub, 120, 120, 120, 255);
+        dst.fillCircle(x + s100, y, hub, 120, 120, 120, 255);
+        dst.fillCircle(x + s170, y, hub, 120, 120, 120, 255);
+    }
+
+    // Solid disc of radius rr through the sprite cache (same pixels as fillCircle)
+    private void disc(int x, int y, int rr, int cr, int cg, int cb, int alpha) {
+        if (rr < 0) return;
+        int rgb = (cr << 16) | (cg << 8) | cb;
+        r.blit(sprites.get(SPRITE_DISC, rr, rgb, -rr, -rr, rr, rr, discPainter), x, y, alpha);
+    }
+
+    // --- Scene 2: transition from the street to the slime world ---
+    private void sceneTransition(double u) {
+        if (outgoing == null || stillFormat != r.format) {
+            outgoing = still(T1);
+            incoming = TRANSITION == Rasterizer.FADE ? null : still(T2 + 1e-9);
+            stillFormat = r.format;
+        }
+        if (TRANSITION == Rasterizer.WIPE) {
+            r.transition(Rasterizer.WIPE, outgoing, incoming, 0, (int) Math.round(W * u)); // slime revealed from the left
+        } else {
+            r.transition(TRANSITION, outgoing, incoming, 0, (int) Math.round(255 * u));   // to black / to the slime
+        }
+    }
+
+    // Frame at time t as a sprite, rendered apart from this renderer's target and state
+    private Sprite still(double t) {
+        int[] px = new int[W * H];
+        new FrameRenderer(new Rasterizer(W, H, px, r.format)).render(t);
+        return Sprite.frame(W, H, px);
+    }
+
+    private static int transitionKind(String name) {
+        switch (name) {
+            case "crossfade": return Rasterizer.CROSSFADE;
+            case "wipe":      return Rasterizer.WIPE;
+            default:          return Rasterizer.FADE;
+        }
+    }
+
+    // --- Scene 3: Slime world ---
+    private void sceneSlime(double u) {
+        // Oceanic gradient background
+        long p0 = passStart(FrameMetrics.BACKGROUND);
+        fullRestore |= slimeBg.restore(r, SLIME_BG_KEY, prevDamage);
+        frameLayer = slimeBg;
+        passEnd(FrameMetrics.BACKGROUND, p0);
+
+        int cx = toX(DESIGN / 2);
+        int cy = toY(DESIGN / 2 + 30);
+
+        // Breathing with smoothing to avoid pixel jitter along ellipse boundary.
+        // Low-pass filter (temporal smoothing). Smaller s = smoother, more lag.
+        double du = SMOOTH_DT / (T3 - T2); // one filter step in scene-local u
+        double rxSm = 0, rySm = 0, w = SMOOTH_S;
+        for (int k = 0; k < SMOOTH_TAPS; k++) {
+            double uk = Math.max(0, u - k * du); // before the scene starts, hold the initial target
+            rxSm += w * slimeRxTarget(uk);
+            rySm += w * slimeRyTarget(uk);
+            w *= 1 - SMOOTH_S;
+        }
+        // Residual weight goes to the oldest sample (the filter's initial state).
+        double uOld = Math.max(0, u - SMOOTH_TAPS * du);
+        rxSm += w / SMOOTH_S * slimeRxTarget(uOld);
+        rySm += w / SMOOTH_S * slimeRyTarget(uOld);
+
+        int rx = (int) Math.round(rxSm * sizeScale());
+        int ry = (int) Math.round(rySm * sizeScale());
+
+        // The face lies inside the body's bounds: both are culled together
+        boolean slime = onScreen(FrameMetrics.CULL_SLIME, cx - rx, cy - ry, cx + rx, cy + ry);
+
+        // Slime body: radial shading & rim light
+        p0 = passStart(FrameMetrics.SLIME_BODY);
+        if (slime) r.slimeBody(cx, cy, rx, ry);
+        passEnd(FrameMetrics.SLIME_BODY, p0);
+
+        p0 = passStart(FrameMetrics.EYES);
+        if (slime) {
+            // Eyes (dark ellipses)
+            int ex   = (int) (rx * 0.40);
+            int eyOff = (int) (-ry * 0.18);
+            int eRx  = (int) (rx * 0.26);
+            int eRy  = (int) (ry * 0.20);
+            r.fillEllipse(cx - ex, cy + eyOff, eRx, eRy, 30, 40, 45, 255);
+            r.fillEllipse(cx + ex, cy + eyOff, eRx, eRy, 30, 40, 45, 255);
+
+            // Highlights (small circles)
+            int hx = (int) (cx - ex - eRx * 0.15);
+            int hy = (int) (cy + eyOff - eRy * 0.15);
+            int hr = toSize(9 + (int) (3 * Math.sin(u * 15)));
+            disc(hx,          hy, hr, 255, 255, 255, 200);
+            disc(hx + 2 * ex, hy, hr, 255, 255, 255, 200);
+
+            // Smile (Bezier)
+            int mw = (int) (rx * (0.5 + 0.15 * Math.sin(u * 4 * Math.PI)));
+            int mh = (int) (ry * 0.18);
+            r.qBezier(cx - mw / 2, cy + (int) (ry * 0.3),
+                      cx,          cy + (int) (ry * 0.3) + mh,
+                      cx + mw / 2, cy + (int) (ry * 0.3), 40, 70, 45, 255);
+        }
+        passEnd(FrameMetrics.EYES, p0);
+
+        // Floating droplets (orbiting)
+        p0 = passStart(FrameMetrics.DROPLETS);
+        for (int i = 0; i < 16; i++) {
+            double ang = i * (2 * Math.PI / 16.0) + u * 6;
+            int px = cx + (int) ((rx + toSize(18)) * Math.cos(ang));
+            int py = cy + (int) ((ry + toSize(18)) * Math.sin(ang));
+            int pr = toSize(6 + (int) (3 * Math.sin(u * 15 + i)));
+            if (!onScreen(FrameMetrics.CULL_DROPLET, px - pr, py - pr, px + pr, py + pr)) continue;
+            int al = 110 + (int) (110 * Math.sin(u * 15 + i));
+            al = Math.max(0, Math.min(255, al));
+            disc(px, py, pr, 180, 250, 200, al);
+        }
+        passEnd(FrameMetrics.DROPLETS, p0);
+    }
+
+    // Slime background layer: oceanic gradient
+    private void paintSlimeBackground(Rasterizer dst) {
+        dst.gradient(SEA_TOP, SEA_BOTTOM);
+    }
+
+    // Replays the frame's command stream into one band view
+    private static final class BandTask implements Runnable {
+        private Rasterizer view; // band of the current target
+        private final CommandBuffer cmds;
+        private boolean timed;   // add each pass's replay time to nanos
+        private final long[] nanos = new long[FrameMetrics.PASSES];
+
+        BandTask(CommandBuffer cmds) {
+            this.cmds = cmds;
+        }
+
+        @Override
+        public void run() {
+            cmds.replay(view, timed ? nanos : null);
+            view.damage.clear(); // damage is tracked on the recording rasterizer
+        }
+    }
+
+    // Breathing targets (initial radii 130 x 110)
+    private double slimeRxTarget(double u) {
+        double pulse = 0.08 * Math.sin(u * Math.PI * 6);
+        return 130 * (1 + pulse + 0.25 * easeInOutSine(u));
+    }
+
+    private double slimeRyTarget(double u) {
+        double pulse = 0.08 * Math.sin(u * Math.PI * 6);
+        return 110 * (1 - pulse + 0.12 * easeOutQuad(u));
+    }
+}
+
+// Short list of damaged boxes (inclusive pixel bounds). Boxes that overlap or touch
+// are merged on insert; once MAX boxes exist, a new one is merged into the box it
+// enlarges least, so the list never allocates.
+final class DirtyRegion {
+    static final int MAX = 8;
+
+    final int[] x0 = new int[MAX], y0 = new int[MAX], x1 = new int[MAX], y1 = new int[MAX];
+    int n;
+
+    void clear() {
+        n = 0;
+    }
+
+    void set(DirtyRegion o) {
+        n = 0;
+        addAll(o);
+    }
+
+    void addAll(DirtyRegion o) {
+        for (int i = 0; i < o.n; i++) add(o.x0[i], o.y0[i], o.x1[i], o.y1[i]);
+    }
+
+    void add(int ax0, int ay0, int ax1, int ay1) {
+        while (true) {
+            int hit = -1;
+            for (int i = 0; i < n; i++) {
+                if (ax0 <= x1[i] + 1 && x0[i] <= ax1 + 1 && ay0 <= y1[i] + 1 && y0[i] <= ay1 + 1) {
+                    hit = i;
+                    break;
+                }
+            }
+            if (hit < 0 && n == MAX) hit = cheapestMerge(ax0, ay0, ax1, ay1);
+            if (hit < 0) break;
+
+            // Absorb box 'hit' and retry: the union may now touch other boxes
+            ax0 = Math.min(ax0, x0[hit]);
+            ay0 = Math.min(ay0, y0[hit]);
+            ax1 = Math.max(ax1, x1[hit]);
+            ay1 = Math.max(ay1, y1[hit]);
+            n--;
+            x0[hit] = x0[n]; y0[hit] = y0[n]; x1[hit] = x1[n]; y1[hit] = y1[n];
+        }
+        x0[n] = ax0; y0[n] = ay0; x1[n] = ax1; y1[n] = ay1;
+        n++;
+    }
+
+    private int cheapestMerge(int ax0, int ay0, int ax1, int ay1) {
+        int best = 0;
+        long bestGrow = Long.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            long ux = Math.max(ax1, x1[i]) - Math.min(ax0, x0[i]) + 1;
+            long uy = Math.max(ay1, y1[i]) - Math.min(ay0, y0[i]) + 1;
+            long grow = ux * uy - (long) (x1[i] - x0[i] + 1) * (y1[i] - y0[i] + 1);
+            if (grow < bestGrow) {
+                bestGrow = grow;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
+
+// Retained layer: static content rasterized once into its own buffer and restored
+// each frame with a bulk copy. Repainted only when the target size or the key changes.
+// If the target already holds this layer, only the boxes the previous frame drew over
+// are copied back.
+final class Layer {
+    interface Painter {
+        void paint(Rasterizer dst);
+    }
+
+    private final Painter painter;
+    private Rasterizer img;
+    private long key;
+    private int generation; // bumped on every repaint (trace capture keys images by it)
+
+    // Repaints are recorded and replayed with occlusion (gradients under opaque shapes)
+    private final CommandBuffer cmds = new CommandBuffer();
+    private Occlusion occlusion;
+
+    Layer(Painter painter) {
+        this.painter = painter;
+    }
+
+    void invalidate() {
+        img = null;
+    }
+
+    int generation() {
+        return generation;
+    }
+
+    // Current layer image (valid after the first restore)
+    int[] pixels() {
+        return img.pix;
+    }
+
+    // Copy the layer into dst (repainting it first if stale); stale = dst's damage since
+    // it last held this layer. Returns true if the whole frame was replaced.
+    boolean restore(Rasterizer dst, long key, DirtyRegion stale) {
+        boolean repainted = false;
+        if (img == null || img.W != dst.W || img.H != dst.H || img.format != dst.format || this.key != key) {
+            if (img == null || img.W != dst.W || img.H != dst.H || img.format != dst.format) {
+                img = new Rasterizer(dst.W, dst.H, new int[dst.W * dst.H], dst.format);
+            }
+            paint();
+            this.key = key;
+            generation++;
+            repainted = true;
+        }
+        if (!repainted && dst.baseLayer == this && dst.baseKey == key) {
+            int w = dst.W;
+            for (int i = 0; i < stale.n; i++) {
+                int len = stale.x1[i] - stale.x0[i] + 1;
+                for (int y = stale.y0[i]; y <= stale.y1[i]; y++) {
+                    int off = y * w + stale.x0[i];
+                    System.arraycopy(img.pix, off, dst.pix, off, len);
+                }
+            }
+            return false;
+        }
+        System.arraycopy(img.pix, 0, dst.pix, 0, img.pix.length);
+        dst.baseLayer = this;
+        dst.baseKey = key;
+        return true;
+    }
+
+    private void paint() {
+        if (!Occlusion.ENABLED) {
+            painter.paint(img);
+            return;
+        }
+        if (occlusion == null || occlusion.W != img.W || occlusion.H != img.H) occlusion = new Occlusion(img.W, img.H);
+        cmds.reset();
+        img.rec = cmds;
+        try {
+            painter.paint(img);
+        } finally {
+            img.rec = null;
+        }
+        cmds.occlude(occlusion);
+        cmds.replay(img);
+        cmds.reset();
+    }
+}
+
+// Pass/frame latency recorder: log-bucketed histograms (p50/p99/max) per pass and per
+// scene, plus JFR events (slime.RenderPass, slime.Frame) so Mission Control can line
+// passes up with GC and safepoints. Written by the render thread only: PRESENT times come
+// from the EDT through a single-producer ring drained at the next frame. The HUD and
+// report() read without locking, which at worst shows a stale bucket. Recorded frames
+// charge each scene pass its encoding plus replay time (no JFR pass event for those).
+final class FrameMetrics {
+    static final int BACKGROUND = 0, STICKMAN = 1, TRUCK = 2, SLIME_BODY = 3, EYES = 4, DROPLETS = 5,
+                     VIGNETTE = 6, FILM_GRAIN = 7, FADE = 8, REPLAY = 9, PRESENT = 10;
+    static final int PASSES = 11;
+    static final String[] PASS_NAMES = {"background", "stickman", "truck", "slimeBody", "eyes", "droplets",
+            "vignette", "filmGrain", "transition", "replay", "present"};
+    static final String[] SCENE_NAMES = {"street", "fade", "slime"};
+
+    // Bounds culling: scene objects skipped whole by FrameRenderer, primitives entirely off
+    // the target, and (separately) band replays skipping primitives outside their rows,
+    // which happens once per other band for every on-screen primitive
+    static final int CULL_STICKMAN = 0, CULL_TRUCK = 1, CULL_SLIME = 2, CULL_DROPLET = 3, CULL_PRIMITIVE = 4,
+                     CULL_BAND = 5;
+    static final String[] CULL_NAMES = {"stickman", "truck", "slime", "droplet", "primitive", "band-skipped"};
+
+    final Histogram[] pass = new Histogram[PASSES];
+    final Histogram[] scene = new Histogram[SCENE_NAMES.length];
+    final long[] culled = new long[CULL_NAMES.length];
+
+    // Opaque occlusion per scene: pixels drawn, and pixels skipped because a later opaque
+    // command overwrites them (the overdraw eliminated is skipped / (drawn + skipped))
+    final long[] drawn = new long[SCENE_NAMES.length];
+    final long[] occluded = new long[SCENE_NAMES.length];
+    private double lastEliminated;
+
+    // Last completed frame: scene, total time and its slowest pass (-1 = none)
+    int lastScene;
+    long lastFrameNanos;
+    int slowest = -1;
+    long slowestNanos;
+
+    private long frames;
+    private int currentScene;
+    private final long[] lastNanos = new long[PASSES];
+    private final long[] lastFrame = new long[PASSES];
+
+    // Open JFR events; only allocated while a recording has the event type enabled
+    private static final jdk.jfr.EventType PASS_TYPE = jdk.jfr.EventType.getEventType(PassEvent.class);
+    private static final jdk.jfr.EventType FRAME_TYPE = jdk.jfr.EventType.getEventType(FrameEvent.class);
+    private final PassEvent[] open = new PassEvent[PASSES];
+    private FrameEvent openFrame;
+
+    // PRESENT hand-off: the EDT appends durations at tail, the render thread consumes at head
+    private final long[] presents = new long[64];
+    private final AtomicLong presentHead = new AtomicLong(), presentTail = new AtomicLong();
+    private PassEvent presentEvent;       // EDT only
+    private volatile int publishedScene;  // scene of the last completed frame, for the EDT
+
+    FrameMetrics() {
+        for (int i = 0; i < pass.length; i++) pass[i] = new Histogram();
+        for (int i = 0; i < scene.length; i++) scene[i] = new Histogram();
+        Arrays.fill(lastFrame, -1);
+    }
+
+    long beginFrame(int s) {
+        frames++;
+        currentScene = s;
+        long head = presentHead.get(), tail = presentTail.get();
+        for (; head < tail; head++) pass[PRESENT].record(presents[(int) head & (presents.length - 1)]);
+        presentHead.set(head);
+        if (FRAME_TYPE.isEnabled()) {
+            openFrame = new FrameEvent();
+            openFrame.begin();
+        }
+        return System.nanoTime();
+    }
+
+    void endFrame(long t0) {
+        long d = System.nanoTime() - t0;
+        scene[currentScene].record(d);
+        int slow = -1;
+        for (int p = 0; p < PASSES; p++) {
+            if (p == PRESENT || p == REPLAY) continue; // not a scene pass (replay spans them all)
+            if (lastFrame[p] == frames && (slow < 0 || lastNanos[p] > lastNanos[slow])) slow = p;
+        }
+        slowestNanos = slow < 0 ? 0 : lastNanos[slow];
+        slowest = slow;
+        lastFrameNanos = d;
+        lastScene = currentScene;
+        publishedScene = currentScene;
+        FrameEvent e = openFrame;
+        if (e != null) {
+            openFrame = null;
+            e.scene = SCENE_NAMES[currentScene];
+            e.overdrawEliminated = lastEliminated;
+            e.commit();
+        }
+    }
+
+    // Pixels the frame drew and skipped as occluded
+    void occlusion(long drawnPx, long occludedPx) {
+        drawn[currentScene] += drawnPx;
+        occluded[currentScene] += occludedPx;
+        lastEliminated = occludedPx / (double) Math.max(1, drawnPx + occludedPx);
+    }
+
+    long begin(int p) {
+        if (PASS_TYPE.isEnabled()) {
+            PassEvent e = new PassEvent();
+            e.begin();
+            open[p] = e;
+        }
+        return System.nanoTime();
+    }
+
+    void end(int p, long t0) {
+        record(p, System.nanoTime() - t0);
+        PassEvent e = open[p];
+        if (e != null) {
+            open[p] = null;
+            e.pass = PASS_NAMES[p];
+            e.scene = SCENE_NAMES[currentScene];
+            e.commit();
+        }
+    }
+
+    // A pass timed by the caller (recorded frames, see FrameRenderer.chargePasses)
+    void record(int p, long nanos) {
+        pass[p].record(nanos);
+        lastNanos[p] = nanos;
+        lastFrame[p] = frames;
+    }
+
+    // Presentation, on the EDT. A full ring (render thread stalled) drops the sample.
+    long beginPresent() {
+        if (PASS_TYPE.isEnabled()) {
+            presentEvent = new PassEvent();
+            presentEvent.begin();
+        }
+        return System.nanoTime();
+    }
+
+    void endPresent(long t0) {
+        long d = System.nanoTime() - t0;
+        long tail = presentTail.get();
+        if (tail - presentHead.get() < presents.length) {
+            presents[(int) tail & (presents.length - 1)] = d;
+            presentTail.set(tail + 1);
+        }
+        PassEvent e = presentEvent;
+        if (e != null) {
+            presentEvent = null;
+            e.pass = PASS_NAMES[PRESENT];
+            e.scene = SCENE_NAMES[publishedScene];
+            e.commit();
+        }
+    }
+
+    void report(java.io.PrintStream out) {
+        out.printf(Locale.ROOT, "%-12s %8s %9s %9s %9s%n", "pass", "count", "p50 ms", "p99 ms", "max ms");
+        for (int p = 0; p < PASSES; p++) row(out, PASS_NAMES[p], pass[p]);
+        out.printf(Locale.ROOT, "%-12s %8s %9s %9s %9s%n", "scene", "frames", "p50 ms", "p99 ms", "max ms");
+        for (int s = 0; s < scene.length; s++) row(out, SCENE_NAMES[s], scene[s]);
+        out.printf(Locale.ROOT, "%-12s %8s %9s%n", "culled", "total", "per frame");
+        for (int c = 0; c < culled.length; c++) {
+            out.printf(Locale.ROOT, "%-12s %8d %9.2f%n", CULL_NAMES[c], culled[c], culled[c] / (double) Math.max(1, frames));
+        }
+        out.printf(Locale.ROOT, "%-12s %9s %9s %11s%n", "occlusion", "drawn/f", "skipped/f", "% overdraw");
+        for (int s = 0; s < scene.length; s++) {
+            if (scene[s].count == 0) continue;
+            double n = scene[s].count;
+            out.printf(Locale.ROOT, "%-12s %9.0f %9.0f %11.2f%n", SCENE_NAMES[s], drawn[s] / n, occluded[s] / n,
+                       100.0 * occluded[s] / Math.max(1, drawn[s] + occluded[s]));
+        }
+    }
+
+    private static void row(java.io.PrintStream out, String name, Histogram h) {
+        if (h.count == 0) return;
+        out.printf(Locale.ROOT, "%-12s %8d %9.3f %9.3f %9.3f%n", name, h.count,
+                   h.percentile(0.50) / 1e6, h.percentile(0.99) / 1e6, h.max / 1e6);
+    }
+
+    // Headless: render the timeline 'loops' times at 60 fps and print the histograms
+    static void main(String[] args) {
+        int loops = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        FrameMetrics m = new FrameMetrics();
+        FrameRenderer fr = new FrameRenderer(new Rasterizer(600, 600, new int[600 * 600], Rasterizer.OPAQUE));
+        fr.setBands(Integer.getInteger("slime.bands", 1));
+        fr.setMetrics(m);
+        fr.setHud(Boolean.getBoolean("slime.hud"));
+        int frames = (int) Math.round(FrameRenderer.T3 * 60);
+        for (int l = 0; l < loops; l++) {
+            for (int i = 0; i < frames; i++) fr.render(i / 60.0);
+        }
+        m.report(System.out);
+    }
+
+    // Latency histogram over nanoseconds: 2^SUB_BITS buckets per power of two, so any
+    // percentile is within 1/8 of the true value; record() is a few integer ops.
+    static final class Histogram {
+        private static final int SUB_BITS = 3, SUB = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB];
+        long count, max;
+
+        void record(long v) {
+            if (v < 0) v = 0;
+            counts[index(v)]++;
+            count++;
+            if (v > max) max = v;
+        }
+
+        // Upper bound of the bucket holding the q-quantile, capped at the largest sample
+        long percentile(double q) {
+            long rank = Math.max(1, (long) Math.ceil(q * count)), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upper(i), max);
+            }
+            return max;
+        }
+
+        private static int index(long v) {
+            if (v < SUB) return (int) v;
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            return (e - SUB_BITS + 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+        }
+
+        private static long upper(int i) {
+            if (i < SUB) return i;
+            int e = i / SUB + SUB_BITS - 1;
+            long m = SUB + i % SUB;
+            return ((m + 1) << (e - SUB_BITS)) - 1;
+        }
+    }
+
+    @jdk.jfr.Name("slime.RenderPass")
+    @jdk.jfr.Label("Render Pass")
+    @jdk.jfr.Category("Slime World")
+    static final class PassEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Pass")
+        String pass;
+        @jdk.jfr.Label("Scene")
+        String scene;
+    }
+
+    @jdk.jfr.Name("slime.Frame")
+    @jdk.jfr.Label("Frame")
+    @jdk.jfr.Category("Slime World")
+    static final class FrameEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Scene")
+        String scene;
+        @jdk.jfr.Label("Overdraw Eliminated")
+        @jdk.jfr.Percentage
+        double overdrawEliminated;
+    }
+}
+
+// Timing overlay drawn with the rasterizer's own primitives: a 3x5 bitmap font at 2x
+// over a translucent box. Text goes through a reused char buffer, so drawing it does
+// not allocate.
+final class Hud {
+    private static final String GLYPHS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ.:/-";
+    // 5 rows of 3 bits each, top row in the high bits
+    private static final int[] BITS = {
+            0x7B6F, 0x2C97, 0x73E7, 0x73CF, 0x5BC9, 0x79CF, 0x79EF, 0x7252, 0x7BEF, 0x7BCF,
+            0x2BED, 0x6BAE, 0x3923, 0x6B6E, 0x79A7, 0x79A4, 0x396B, 0x5BED, 0x7497, 0x126A,
+            0x5BAD, 0x4927, 0x5FED, 0x6B6D, 0x2B6A, 0x6BA4, 0x2B73, 0x6BAD, 0x388E, 0x7492,
+            0x5B6F, 0x5B6A, 0x5BFD, 0x5AAD, 0x5A92, 0x72A7, 0x0002, 0x0410, 0x12A4, 0x01C0};
+    private static final int SCALE = 2;
+    private static final int X0 = 10, Y0 = 10;
+    private static final int COLS = 24, LINES = 3;
+    private static final int ADVANCE = 4 * SCALE, LINE_H = 7 * SCALE;
+
+    private final char[] text = new char[COLS];
+    private final PolygonBatch box = new PolygonBatch();
+
+    void draw(Rasterizer r, FrameMetrics m) {
+        r.fillPolygons(box.clear().rect(X0 - 6, Y0 - 6, X0 + COLS * ADVANCE + 4, Y0 + LINES * LINE_H + 2,
+                                        0, 0, 0, 160));
+
+        // Last frame: scene and total time
+        int n = put(0, FrameMetrics.SCENE_NAMES[m.lastScene]);
+        n = ms(put(n, " "), m.lastFrameNanos);
+        line(r, 0, put(n, " MS"));
+
+        // That scene's p99 / max
+        FrameMetrics.Histogram h = m.scene[m.lastScene];
+        n = ms(put(0, "P99 "), h.percentile(0.99));
+        line(r, 1, ms(put(n, " MAX "), h.max));
+
+        // Slowest pass of the last frame
+        if (m.slowest >= 0) {
+            n = put(put(0, "SLOW "), FrameMetrics.PASS_NAMES[m.slowest]);
+            line(r, 2, ms(put(n, " "), m.slowestNanos));
+        }
+    }
+
+    private int put(int n, String s) {
+        for (int i = 0; i < s.length() && n < COLS; i++) text[n++] = Character.toUpperCase(s.charAt(i));
+        return n;
+    }
+
+    // Milliseconds with two decimals, written at text[n]
+    private int ms(int n, long nanos) {
+        long v = (nanos + 5_000) / 10_000;
+        int start = n;
+        for (int d = 0; d < 3 || v > 0; d++) {
+            if (d == 2) n = push(n, start, '.');
+            n = push(n, start, (char) ('0' + v % 10));
+            v /= 10;
+        }
+        return n;
+    }
+
+    // Prepends c to text[start, n)
+    private int push(int n, int start, char c) {
+        if (n >= COLS) return n;
+        System.arraycopy(text, start, text, start + 1, n - start);
+        text[start] = c;
+        return n + 1;
+    }
+
+    private void line(Rasterizer r, int row, int n) {
+        int y = Y0 + row * LINE_H;
+        for (int i = 0; i < n; i++) {
+            int g = GLYPHS.indexOf(text[i]);
+            if (g < 0) continue; // space and anything the font lacks
+            glyph(r, X0 + i * ADVANCE, y, BITS[g]);
+        }
+    }
+
+    // One glyph as runs of lit cells, SCALE rows per font row
+    private static void glyph(Rasterizer r, int x, int y, int bits) {
+        for (int gy = 0; gy < 5; gy++) {
+            int rowBits = (bits >>> (3 * (4 - gy))) & 7;
+            for (int gx = 0; gx < 3; gx++) {
+                if ((rowBits & (4 >> gx)) == 0) continue;
+                int end = gx;
+                while (end + 1 < 3 && (rowBits & (4 >> (end + 1))) != 0) end++;
+                for (int k = 0; k < SCALE; k++) {
+                    r.hspan(x + gx * SCALE, x + (end + 1) * SCALE - 1, y + gy * SCALE + k, 235, 245, 235, 255);
+                }
+                gx = end;
+            }
+        }
+    }
+}
+
+// Binary frame trace: the exact primitive stream of a range of frames, replayable through
+// the rasterizer with no scene logic involved.
+// Layout (big-endian ints): MAGIC, VERSION, W, H, then blocks of
+//   LAYER_BLOCK  id, W*H pixels                          (first use of each layer image)
+//   SPRITE_BLOCK id, ox, oy, w, h, w*h pixels            (first use of each sprite)
+//   FRAME_BLOCK  t (double bits, 2 ints), layer id or -1, n, n command ints
+//   java Assignment1_66050946_66050859 --trace-capture <file> [from] [to] [fps]   (at -Dslime.size)
+//   java Assignment1_66050946_66050859 --trace-replay  <file> [passes]
+final class FrameTrace {
+    static final int MAGIC = 0x534C5452; // "SLTR"
+    static final int VERSION = 3; // 2: filmGrain carries a frame index, 3: sprite blocks
+    static final int LAYER_BLOCK = 1, FRAME_BLOCK = 2, SPRITE_BLOCK = 3;
+
+    private FrameTrace() {}
+
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final IdentityHashMap<Layer, Integer> written = new IdentityHashMap<>(); // layer -> generation
+        private final IdentityHashMap<Layer, Integer> ids = new IdentityHashMap<>();
+        private final HashSet<Integer> sprites = new HashSet<>(); // ids already written
+        private final int W, H;
+        private int nextId;
+        int frames;
+
+        Writer(File file, int w, int h) throws IOException {
+            this.W = w;
+            this.H = h;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(W);
+            out.writeInt(H);
+        }
+
+        void frame(double t, Layer layer, CommandBuffer cmds) {
+            try {
+                int id = -1;
+                if (layer != null) {
+                    Integer gen = written.get(layer);
+                    if (gen == null || gen != layer.generation()) {
+                        ids.put(layer, nextId++);
+                        written.put(layer, layer.generation());
+                        int[] px = layer.pixels();
+                        out.writeInt(LAYER_BLOCK);
+                        out.writeInt(ids.get(layer));
+                        for (int i = 0; i < W * H; i++) out.writeInt(px[i]);
+                    }
+                    id = ids.get(layer);
+                }
+                for (int i = 0; i < cmds.spriteCount; i++) {
+                    Sprite sp = cmds.sprites[i];
+                    if (!sprites.add(sp.id)) continue;
+                    out.writeInt(SPRITE_BLOCK);
+                    out.writeInt(sp.id);
+                    out.writeInt(sp.ox);
+                    out.writeInt(sp.oy);
+                    out.writeInt(sp.w);
+                    out.writeInt(sp.h);
+                    for (int v : sp.pix) out.writeInt(v);
+                }
+                long bits = Double.doubleToLongBits(t);
+                out.writeInt(FRAME_BLOCK);
+                out.writeInt((int) (bits >>> 32));
+                out.writeInt((int) bits);
+                out.writeInt(id);
+                out.writeInt(cmds.size);
+                for (int i = 0; i < cmds.size; i++) out.writeInt(cmds.data[i]);
+                frames++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Memory-mapped reader: layer images are decoded once, frame streams are bulk-read
+    // from the mapping into one reusable CommandBuffer per frame.
+    static final class Reader {
+        final int W, H;
+        private final IntBuffer ints;
+        private final ArrayList<int[]> layers = new ArrayList<>();
+        private final ArrayList<int[]> frames = new ArrayList<>(); // {int offset, layer id, n}
+        private final ArrayList<Sprite> sprites = new ArrayList<>();
+
+        Reader(File file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ints = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).asIntBuffer();
+            }
+            if (ints.get(0) != MAGIC || ints.get(1) != VERSION) throw new IOException("not a frame trace: " + file);
+            W = ints.get(2);
+            H = ints.get(3);
+            int p = 4;
+            while (p < ints.limit()) {
+                int kind = ints.get(p);
+                if (kind == LAYER_BLOCK) {
+                    int id = ints.get(p + 1);
+                    int[] px = new int[W * H];
+                    ints.position(p + 2);
+                    ints.get(px);
+                    while (layers.size() <= id) layers.add(null);
+                    layers.set(id, px);
+                    p += 2 + W * H;
+                } else if (kind == SPRITE_BLOCK) {
+                    int w = ints.get(p + 4), h = ints.get(p + 5);
+                    int[] px = new int[w * h];
+                    ints.position(p + 6);
+                    ints.get(px);
+                    int id = ints.get(p + 1), ox = ints.get(p + 2), oy = ints.get(p + 3);
+                    boolean still = ox == 0 && oy == 0 && w == W && h == H; // transition frame
+                    sprites.add(still ? Sprite.frame(id, w, h, px) : new Sprite(id, ox, oy, w, h, px));
+                    p += 6 + w * h;
+                } else if (kind == FRAME_BLOCK) {
+                    int n = ints.get(p + 4);
+                    frames.add(new int[]{p + 5, ints.get(p + 3), n});
+                    p += 5 + n;
+                } else {
+                    throw new IOException("corrupt trace at int " + p);
+                }
+            }
+        }
+
+        int frameCount() {
+            return frames.size();
+        }
+
+        // Replay all frames 'passes' times into r; report prints per-primitive statistics
+        void replay(Rasterizer r, int passes, boolean report) {
+            CommandBuffer cmds = new CommandBuffer();
+            cmds.sprites = sprites.toArray(new Sprite[0]); // every frame may refer to any of them
+            cmds.spriteCount = cmds.sprites.length;
+            long[] calls = new long[CommandBuffer.OPCODES];
+            long[] pixels = new long[CommandBuffer.OPCODES];
+            long[] culled = new long[CommandBuffer.OPCODES];
+            long[] nanos = new long[CommandBuffer.OPCODES];
+
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                for (int[] f : frames) {
+                    if (f[1] >= 0) System.arraycopy(layers.get(f[1]), 0, r.pix, 0, W * H);
+                    if (cmds.data.length < f[2]) cmds.data = new int[f[2]];
+                    ints.position(f[0]);
+                    ints.get(cmds.data, 0, f[2]);
+                    cmds.size = f[2];
+                    cmds.replay(r, calls, pixels, culled, nanos);
+                    r.damage.clear();
+                }
+            }
+            if (!report) return;
+            double sec = (System.nanoTime() - start) / 1e9;
+            long n = (long) passes * frames.size();
+
+            long totalNanos = 0;
+            for (long v : nanos) totalNanos += v;
+            System.out.printf("%d frames (%dx%d) in %.3f s: %.1f frames/s%n", n, W, H, sec, n / sec);
+            System.out.printf("%-12s %10s %14s %8s %10s %7s%n", "primitive", "calls", "pixels", "culled", "ms", "time%");
+            for (int op = 1; op < CommandBuffer.OPCODES; op++) {
+                if (calls[op] == 0) continue;
+                System.out.printf("%-12s %10d %14d %8d %10.2f %6.1f%%%n", CommandBuffer.NAMES[op],
+                        calls[op] / passes, pixels[op] / passes, culled[op] / passes, nanos[op] / 1e6 / passes,
+                        100.0 * nanos[op] / Math.max(1, totalNanos));
+            }
+        }
+    }
+
+    static void capture(String[] args) throws IOException {
+        File file   = new File(args.length > 1 ? args[1] : "frames.trace");
+        double from = args.length > 2 ? Double.parseDouble(args[2]) : 0.0;
+        double to   = args.length > 3 ? Double.parseDouble(args[3]) : FrameRenderer.T3;
+        double fps  = args.length > 4 ? Double.parseDouble(args[4]) : 60.0;
+        String[] size = System.getProperty("slime.size", "600x600").split("x");
+        int W = Integer.parseInt(size[0].trim()), H = Integer.parseInt(size[1].trim());
+
+        FrameRenderer fr = new FrameRenderer(new Rasterizer(W, H, new int[W * H], Rasterizer.OPAQUE));
+        int frames = (int) Math.ceil((to - from) * fps - 1e-9);
+        try (Writer w = new Writer(file, W, H)) {
+            fr.setTrace(w);
+            for (int i = 0; i < frames; i++) fr.render((from + i / fps) % FrameRenderer.T3);
+        }
+        // Only now is the stream flushed and closed, so the length is final
+        System.out.printf("%d frames -> %s (%d bytes)%n", frames, file, file.length());
+    }
+
+    static void replay(String[] args) throws IOException {
+        Reader rd = new Reader(new File(args.length > 1 ? args[1] : "frames.trace"));
+        int passes = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int[] pix = new int[rd.W * rd.H];
+        rd.replay(new Rasterizer(rd.W, rd.H, pix, Rasterizer.OPAQUE), 1, false); // warm-up
+        rd.replay(new Rasterizer(rd.W, rd.H, pix, Rasterizer.OPAQUE), passes, true);
+    }
+}
+
+// Headless export: renders any frame range at any FPS in parallel into a PNG sequence.
+class BatchRenderer {
+    private final int W, H;
+    private final File dir;
+    private final double fps, from;
+
+    // One renderer + image per worker thread; frames are independent so nothing else is shared.
+    private final ThreadLocal<FrameRenderer> local;
+    private final ThreadLocal<BufferedImage> images;
+
+    BatchRenderer(int w, int h, File dir, double fps, double from) {
+        this.W = w;
+        this.H = h;
+        this.dir = dir;
+        this.fps = fps;
+        this.from = from;
+        images = ThreadLocal.withInitial(() -> new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB));
+        local = ThreadLocal.withInitial(() -> {
+            int[] pix = ((DataBufferInt) images.get().getRaster().getDataBuffer()).getData();
+            return new FrameRenderer(new Rasterizer(W, H, pix, Rasterizer.OPAQUE));
+        });
+    }
+
+    static void main(String[] args) {
+        File dir      = new File(args.length > 1 ? args[1] : "frames");
+        double fps    = args.length > 2 ? Double.parseDouble(args[2]) : 60.0;
+        double from   = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+        double to     = args.length > 4 ? Double.parseDouble(args[4]) : FrameRenderer.T3;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new UncheckedIOException(new IOException("cannot create " + dir));
+        }
+        int frames = (int) Math.ceil((to - from) * fps - 1e-9);
+        long start = System.nanoTime();
+        new BatchRenderer(600, 600, dir, fps, from).renderAll(frames, ForkJoinPool.commonPool());
+        double sec = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d frames -> %s in %.2f s (%d threads)%n",
+                frames, dir, sec, ForkJoinPool.commonPool().getParallelism());
+    }
+
+    void renderAll(int frames, ForkJoinPool pool) {
+        pool.invoke(new Range(0, frames));
+    }
+
+    // Frame i is at time from + i/fps, wrapped into the loop.
+    void renderFrame(int i) {
+        double t = (from + i / fps) % FrameRenderer.T3;
+        local.get().render(t);
+        try {
+            ImageIO.write(images.get(), "png", new File(dir, String.format("frame_%05d.png", i)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Recursive split of [lo, hi) down to single frames.
+    private class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo, hi;
+
+        Range(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                if (hi > lo) renderFrame(lo);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Range(lo, mid), new Range(mid, hi));
+        }
+    }
+}
+
+// Streaming video output: each rendered frame is copied out of the target into one of a
+// small pool of buffers and queued for a writer thread, which converts it (Y4M 4:2:0 or
+// raw RGB24) and writes it through a channel to a file or stdout, e.g. piped into an
+// external encoder. Rendering the next frame overlaps converting and writing this one;
+// when the writer falls behind, submit() waits for a free buffer instead of queueing more.
+//   java Assignment1_66050946_66050859 --stream <file.y4m|file.rgb|-> [fps] [from] [to]
+// -Dstream.format=y4m|rgb overrides the format picked from the name (stdout: y4m).
+final class VideoStream implements Closeable {
+    static final int Y4M = 0, RGB24 = 1;
+    private static final int BUFFERS = Math.max(2, Integer.getInteger("stream.buffers", 4));
+
+    private static final int[] END = new int[0]; // queued by close()
+
+    private final int W, H, format;
+    private final WritableByteChannel out;
+
+    // Buffers cycle free -> full (submit) -> free (writer); both queues hold at most BUFFERS
+    private final BlockingQueue<int[]> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<int[]> full = new ArrayBlockingQueue<>(BUFFERS + 1);
+    private final Thread writer;
+
+    // One converted frame, including the Y4M "FRAME" header; only the writer touches it
+    private final byte[] bytes;
+    private final ByteBuffer frame;
+
+    private volatile IOException failure; // the writer's; it then only recycles buffers
+    long frames;
+    long stallNanos; // submit() time spent waiting for the writer
+
+    VideoStream(WritableByteChannel out, int w, int h, int format, double fps) throws IOException {
+        this.W = w;
+        this.H = h;
+        this.format = format;
+        this.out = out;
+        for (int i = 0; i < BUFFERS; i++) free.add(new int[w * h]);
+
+        int cw = (w + 1) / 2, ch = (h + 1) / 2;
+        if (format == Y4M) {
+            long num = Math.round(fps * 1000), den = 1000, g = gcd(num, den);
+            String header = String.format(Locale.ROOT, "YUV4MPEG2 W%d H%d F%d:%d Ip A1:1 C420jpeg\n",
+                                          w, h, num / g, den / g);
+            writeFully(ByteBuffer.wrap(header.getBytes(java.nio.charset.StandardCharsets.US_ASCII)));
+            bytes = new byte[6 + w * h + 2 * cw * ch];
+            System.arraycopy("FRAME\n".getBytes(java.nio.charset.StandardCharsets.US_ASCII), 0, bytes, 0, 6);
+        } else {
+            bytes = new byte[3 * w * h];
+        }
+        frame = ByteBuffer.wrap(bytes);
+
+        writer = new Thread(this::drain, "video-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Output for a name: "-" is stdout, anything else a file (created or truncated)
+    static WritableByteChannel open(String name) throws IOException {
+        if (name.equals("-")) return Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+        return FileChannel.open(new File(name).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Queue a copy of one W x H frame; blocks while every buffer is still queued or being written
+    void submit(int[] pix) throws IOException {
+        check();
+        try {
+            int[] buf = free.poll();
+            if (buf == null) {
+                long t0 = System.nanoTime();
+                buf = free.take();
+                stallNanos += System.nanoTime() - t0;
+            }
+            System.arraycopy(pix, 0, buf, 0, W * H);
+            full.put(buf);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("interrupted while queueing a frame");
+        }
+        frames++;
+    }
+
+    // Flush the queued frames, stop the writer and close the output
+    @Override
+    public void close() throws IOException {
+        try {
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("interrupted while flushing frames");
+        } finally {
+            out.close();
+        }
+        check();
+    }
+
+    private void check() throws IOException {
+        IOException e = failure;
+        if (e != null) throw new IOException("video output failed", e);
+    }
+
+    // Writer thread: convert and write frames in queue order until END
+    private void drain() {
+        try {
+            for (int[] buf; (buf = full.take()) != END; free.put(buf)) {
+                if (failure != null) continue;
+                try {
+                    if (format == Y4M) yuv420(buf); else rgb24(buf);
+                    frame.clear();
+                    writeFully(frame);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) out.write(b);
+    }
+
+    // Full-range BT.601 (what C420jpeg means): Y per pixel, Cb/Cr from each 2x2 block's
+    // average (edge blocks of odd sizes average what they have). Planes follow the header.
+    private void yuv420(int[] pix) {
+        int y0 = 6, cb0 = y0 + W * H, cw = (W + 1) / 2, cr0 = cb0 + cw * ((H + 1) / 2);
+        for (int i = 0; i < W * H; i++) {
+            int c = pix[i];
+            int r = (c >>> 16) & 255, g = (c >>> 8) & 255, b = c & 255;
+            bytes[y0 + i] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+        }
+        for (int y = 0; y < H; y += 2) {
+            int row = y * W, next = y + 1 < H ? row + W : row;
+            int o = (y >> 1) * cw;
+            for (int x = 0; x < W; x += 2) {
+                int x1 = x + 1 < W ? x + 1 : x;
+                int c00 = pix[row + x], c01 = pix[row + x1], c10 = pix[next + x], c11 = pix[next + x1];
+                // Sums of the four pixels' channels (4x scale)
+                int r = ((c00 >>> 16) & 255) + ((c01 >>> 16) & 255) + ((c10 >>> 16) & 255) + ((c11 >>> 16) & 255);
+                int g = ((c00 >>> 8) & 255) + ((c01 >>> 8) & 255) + ((c10 >>> 8) & 255) + ((c11 >>> 8) & 255);
+                int b = (c00 & 255) + (c01 & 255) + (c10 & 255) + (c11 & 255);
+                bytes[cb0 + o] = (byte) Rasterizer.clamp(((-43 * r - 85 * g + 128 * b + 512) >> 10) + 128);
+                bytes[cr0 + o] = (byte) Rasterizer.clamp(((128 * r - 107 * g - 21 * b + 512) >> 10) + 128);
+                o++;
+            }
+        }
+    }
+
+    private void rgb24(int[] pix) {
+        for (int i = 0, o = 0; i < W * H; i++, o += 3) {
+            int c = pix[i];
+            bytes[o] = (byte) (c >>> 16);
+            bytes[o + 1] = (byte) (c >>> 8);
+            bytes[o + 2] = (byte) c;
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    // Headless: render [from, to) at fps (wrapped into the loop) straight into the stream.
+    // Progress goes to stderr, since stdout may be the video.
+    static void main(String[] args) throws IOException {
+        String name = args.length > 1 ? args[1] : "-";
+        double fps  = args.length > 2 ? Double.parseDouble(args[2]) : 60.0;
+        double from = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+        double to   = args.length > 4 ? Double.parseDouble(args[4]) : FrameRenderer.T3;
+        String fmt  = System.getProperty("stream.format", name.endsWith(".rgb") ? "rgb" : "y4m");
+        String[] size = System.getProperty("slime.size", "600x600").split("x");
+        int w = Integer.parseInt(size[0].trim()), h = Integer.parseInt(size[1].trim());
+
+        FrameRenderer fr = new FrameRenderer(new Rasterizer(w, h, new int[w * h], Rasterizer.OPAQUE));
+        fr.setBands(Integer.getInteger("slime.bands", Runtime.getRuntime().availableProcessors()));
+        int frames = (int) Math.ceil((to - from) * fps - 1e-9);
+        long start = System.nanoTime();
+        long stall;
+        try (VideoStream s = new VideoStream(open(name), w, h, fmt.equals("rgb") ? RGB24 : Y4M, fps)) {
+            for (int i = 0; i < frames; i++) {
+                fr.render((from + i / fps) % FrameRenderer.T3);
+                s.submit(fr.target().pix);
+            }
+            stall = s.stallNanos;
+        }
+        double sec = (System.nanoTime() - start) / 1e9;
+        System.err.printf(Locale.ROOT, "%d frames (%dx%d %s) -> %s in %.2f s: %.1f frames/s, %.0f ms waiting on the writer%n",
+                          frames, w, h, fmt, name, sec, frames / sec, stall / 1e6);
+    }
+}
+
+// Micro-benchmark harness for the rasterizer primitives, post-process passes and whole frames.
+// Runs headless over a bare Rasterizer; results use the JMH JSON result layout so the same
+// tooling can diff runs between builds. The target is OPAQUE like the window's framebuffers
+// (-Dbench.format=premultiplied measures the alpha-tracking kernels instead).
+//   java Assignment1_66050946_66050859 --bench [out.json] [name-regex]
+class RasterBench {
+    private static final int[][] RESOLUTIONS = {{600, 600}, {1920, 1080}, {3840, 2160}};
+    private static final int[]   ALPHAS      = {255, 128};   // opaque, translucent
+    private static final int[]   SIZES       = {16, 128};    // shape radius/extent in px
+
+    private static final int  WARMUP_ITERS  = Integer.getInteger("bench.warmup", 3);
+    private static final int  MEASURE_ITERS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITER_NANOS    = Long.getLong("bench.iterMs", 200L) * 1_000_000L;
+    private static final int  FORMAT        = "premultiplied".equals(System.getProperty("bench.format"))
+                                              ? Rasterizer.PREMULTIPLIED : Rasterizer.OPAQUE;
+
+    // One benchmarked operation; i is the invocation counter (used to vary positions).
+    interface Op {
+        void run(Rasterizer r, int alpha, int size, long i);
+    }
+
+    private static final class Bench {
+        final String name;
+        final boolean usesAlpha, usesSize;
+        final Op op;
+
+        Bench(String name, boolean usesAlpha, boolean usesSize, Op op) {
+            this.name = name;
+            this.usesAlpha = usesAlpha;
+            this.usesSize = usesSize;
+            this.op = op;
+        }
+    }
+
+    static void main(String[] args) throws IOException {
+        File out      = new File(args.length > 1 ? args[1] : "bench.json");
+        String filter = args.length > 2 ? args[2] : ".*";
+
+        StringBuilder json = new StringBuilder("[\n");
+        boolean first = true;
+        for (Bench b : benches()) {
+            if (!b.name.matches(filter)) continue;
+            for (int[] res : RESOLUTIONS) {
+                for (int alpha : b.usesAlpha ? ALPHAS : new int[]{255}) {
+                    for (int size : b.usesSize ? SIZES : new int[]{0}) {
+                        double[] s = measure(b, res[0], res[1], alpha, size);
+                        System.out.printf(Locale.ROOT, "%-14s %4dx%-4d a=%3d size=%3d  %12.1f +- %.1f ns/op%n",
+                                b.name, res[0], res[1], alpha, size, s[0], s[1]);
+                        if (!first) json.append(",\n");
+                        first = false;
+                        appendResult(json, b, res, alpha, size, s);
+                    }
+                }
+            }
+        }
+        json.append("\n]\n");
+        try (java.io.PrintWriter w = new java.io.PrintWriter(out, "UTF-8")) {
+            w.print(json);
+        }
+        System.out.println("results -> " + out);
+    }
+
+    private static ArrayList<Bench> benches() {
+        ArrayList<Bench> list = new ArrayList<>();
+        list.add(new Bench("pblend", true, false, (r, a, s, i) ->
+                r.pblend((int) (i % r.W), (int) ((i / r.W) % r.H), 200, 120, 60, a)));
+        list.add(new Bench("hspan", true, true, (r, a, s, i) ->
+                r.hspan(r.W / 2 - s, r.W / 2 + s, (int) (i % r.H), 200, 120, 60, a)));
+        list.add(new Bench("line", true, true, (r, a, s, i) ->
+                r.line(r.W / 2 - s, r.H / 2 - s / 2, r.W / 2 + s, r.H / 2 + s / 2, 200, 120, 60, a)));
+        list.add(new Bench("thickLine", true, true, (r, a, s, i) ->
+                r.thickLine(r.W / 2 - s, r.H / 2 - s / 2, r.W / 2 + s, r.H / 2 + s / 2, 2, 200, 120, 60, a)));
+        list.add(new Bench("fillCircle", true, true, (r, a, s, i) ->
+                r.fillCircle(r.W / 2, r.H / 2, s, 200, 120, 60, a)));
+        list.add(new Bench("ellipse", true, true, (r, a, s, i) ->
+                r.ellipse(r.W / 2, r.H / 2, s, s * 3 / 4, 200, 120, 60, a)));
+        list.add(new Bench("fillEllipse", true, true, (r, a, s, i) ->
+                r.fillEllipse(r.W / 2, r.H / 2, s, s * 3 / 4, 200, 120, 60, a)));
+        list.add(new Bench("fillPolygon", true, true, new Op() {
+            // Concave 10-point star, rebuilt only when the size changes
+            private final int[] xs = new int[10], ys = new int[10];
+            private int built = -1;
+
+            @Override
+            public void run(Rasterizer r, int a, int s, long i) {
+                if (built != s) {
+                    for (int k = 0; k < 10; k++) {
+                        double ang = k * Math.PI / 5, rad = (k & 1) == 0 ? s : s * 0.45;
+                        xs[k] = r.W / 2 + (int) (rad * Math.cos(ang));
+                        ys[k] = r.H / 2 + (int) (rad * Math.sin(ang));
+                    }
+                    built = s;
+                }
+                r.fillPolygon(xs, ys, 10, 200, 120, 60, a);
+            }
+        }));
+        list.add(new Bench("fillPolygons", true, true, new Op() {
+            // Three overlapping stars swept together
+            private final PolygonBatch batch = new PolygonBatch();
+            private final int[] xs = new int[10], ys = new int[10];
+            private int built = -1;
+
+            @Override
+            public void run(Rasterizer r, int a, int s, long i) {
+                if (built != s) {
+                    batch.clear();
+                    for (int p = 0; p < 3; p++) {
+                        for (int k = 0; k < 10; k++) {
+                            double ang = k * Math.PI / 5, rad = (k & 1) == 0 ? s : s * 0.45;
+                            xs[k] = r.W / 2 + (p - 1) * s / 2 + (int) (rad * Math.cos(ang));
+                            ys[k] = r.H / 2 + (int) (rad * Math.sin(ang));
+                        }
+                        batch.add(xs, ys, 10, p == 1 ? PolygonBatch.NON_ZERO : PolygonBatch.EVEN_ODD,
+                                  200, 120, 60, a);
+                    }
+                    built = s;
+                }
+                r.fillPolygons(batch);
+            }
+        }));
+        list.add(new Bench("qBezier", true, true, (r, a, s, i) ->
+                r.qBezier(r.W / 2 - s, r.H / 2, r.W / 2, r.H / 2 - s, r.W / 2 + s, r.H / 2, 200, 120, 60, a)));
+        list.add(new Bench("cBezier", true, true, (r, a, s, i) ->
+                r.cBezier(r.W / 2 - s, r.H / 2, r.W / 2 - s / 2, r.H / 2 - s, r.W / 2 + s / 2, r.H / 2 + s,
+                          r.W / 2 + s, r.H / 2, 200, 120, 60, a)));
+        list.add(new Bench("strokeQBezier", true, true, (r, a, s, i) ->
+                r.strokeQBezier(r.W / 2 - s, r.H / 2, r.W / 2, r.H / 2 - s, r.W / 2 + s, r.H / 2, 2,
+                                200, 120, 60, a)));
+        list.add(new Bench("slimeBody", false, true, (r, a, s, i) ->
+                r.slimeBody(r.W / 2, r.H / 2, s, s * 85 / 100)));
+        list.add(new Bench("vignette", false, false, (r, a, s, i) -> r.vignette()));
+        list.add(new Bench("filmGrain", false, false, (r, a, s, i) -> r.filmGrain(10, (int) i)));
+        list.add(new Bench("renderStreet", false, false, new SceneOp(0.5 * FrameRenderer.T1)));
+        list.add(new Bench("renderFade", false, false,
+                new SceneOp(0.5 * (FrameRenderer.T1 + FrameRenderer.T2))));
+        list.add(new Bench("renderSlime", false, false,
+                new SceneOp(0.5 * (FrameRenderer.T2 + FrameRenderer.T3))));
+        return list;
+    }
+
+    // Whole-frame render(t) at a fixed time inside one scene
+    private static final class SceneOp implements Op {
+        private final double t;
+        private FrameRenderer fr;
+
+        SceneOp(double t) {
+            this.t = t;
+        }
+
+        @Override
+        public void run(Rasterizer r, int a, int s, long i) {
+            if (fr == null || fr.target() != r) {
+                fr = new FrameRenderer(r);
+                fr.setBands(Integer.getInteger("slime.bands", 1));
+            }
+            fr.render(t);
+        }
+    }
+
+    // Returns {mean ns/op, 99.9% half-interval}; same statistic JMH reports as scoreError
+    // (Student's t with n - 1 degrees of freedom times the standard error).
+    private static double[] measure(Bench b, int w, int h, int alpha, int size) {
+        Rasterizer r = new Rasterizer(w, h, new int[w * h], FORMAT);
+        r.clear(Rasterizer.ARGB(255, 30, 40, 50));
+
+        long i = 0;
+        long batch = 1;
+        for (int it = 0; it < WARMUP_ITERS; it++) {
+            long ops = 0, start = System.nanoTime(), el;
+            do {
+                for (long k = 0; k < batch; k++) b.op.run(r, alpha, size, i++);
+                ops += batch;
+                el = System.nanoTime() - start;
+            } while (el < ITER_NANOS);
+            // Aim for ~100 clock reads per iteration so timer cost stays out of the score
+            batch = Math.max(1, ops * (ITER_NANOS / 100) / Math.max(1, el));
+        }
+
+        double[] score = new double[MEASURE_ITERS];
+        for (int it = 0; it < MEASURE_ITERS; it++) {
+            long ops = 0, start = System.nanoTime(), el;
+            do {
+                for (long k = 0; k < batch; k++) b.op.run(r, alpha, size, i++);
+                ops += batch;
+                el = System.nanoTime() - start;
+            } while (el < ITER_NANOS);
+            score[it] = el / (double) ops;
+        }
+
+        double mean = 0;
+        for (double v : score) mean += v;
+        mean /= score.length;
+        double var = 0;
+        for (double v : score) var += (v - mean) * (v - mean);
+        int df = score.length - 1;
+        double err = df > 0 ? studentT(0.999, df) * Math.sqrt(var / df / score.length) : Double.NaN;
+        return new double[]{mean, err};
+    }
+
+    // t such that P(|T| <= t) = level for Student's t with df degrees of freedom (bisection)
+    private static double studentT(double level, int df) {
+        double lo = 0, hi = 1;
+        while (tCoverage(hi, df) < level) hi *= 2;
+        for (int k = 0; k < 100; k++) {
+            double mid = (lo + hi) / 2;
+            if (tCoverage(mid, df) < level) lo = mid;
+            else hi = mid;
+        }
+        return (lo + hi) / 2;
+    }
+
+    // P(|T| <= t), closed form for integer df (Abramowitz & Stegun 26.7.3-4)
+    private static double tCoverage(double t, int df) {
+        double th = Math.atan(t / Math.sqrt(df));
+        double c = Math.cos(th), c2 = c * c, s = Math.sin(th);
+        if (df % 2 == 0) {
+            double term = 1, sum = 1;
+            for (int k = 2; k <= df - 2; k += 2) sum += term *= c2 * (k - 1) / k;
+            return s * sum;
+        }
+        double sum = 0;
+        if (df > 1) {
+            double term = c;
+            sum = c;
+            for (int k = 3; k <= df - 2; k += 2) sum += term *= c2 * (k - 1) / k;
+        }
+        return 2 / Math.PI * (th + s * sum);
+    }
+
+    private static void appendResult(StringBuilder json, Bench b, int[] res, int alpha, int size, double[] s) {
+        json.append("  {\"benchmark\": \"RasterBench.").append(b.name).append('"')
+            .append(", \"mode\": \"avgt\"")
+            .append(", \"warmupIterations\": ").append(WARMUP_ITERS)
+            .append(", \"measurementIterations\": ").append(MEASURE_ITERS)
+            .append(", \"params\": {\"resolution\": \"").append(res[0]).append('x').append(res[1]).append('"');
+        if (b.usesAlpha) json.append(", \"alpha\": \"").append(alpha).append('"');
+        if (b.usesSize)  json.append(", \"size\": \"").append(size).append('"');
+        json.append("}, \"primaryMetric\": {\"score\": ").append(String.format(Locale.ROOT, "%.3f", s[0]))
+            .append(", \"scoreError\": ").append(Double.isNaN(s[1]) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", s[1]))
+            .append(", \"scoreUnit\": \"ns/op\"}}");
+    }
+}
+
+// Per-frame allocation accounting from the per-thread allocated-bytes counters, summed over
+// every live thread so band workers count too. The steady-state render(t) path is meant to
+// allocate nothing; main() exits with status 1 if any scene does.
+final class AllocationMeter {
+    private static final String[] SCENES = {"street", "fade", "slime"};
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    AllocationMeter() {
+        java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("thread allocation counters not available on this JVM");
+        }
+        threads = (com.sun.management.ThreadMXBean) mx;
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    // Bytes allocated by all threads, per frame, rendering frames evenly spread over [from, to)
+    double bytesPerFrame(FrameRenderer fr, double from, double to, int frames) {
+        long[] ids = threads.getAllThreadIds();
+        long[] before = threads.getThreadAllocatedBytes(ids);
+        long calib = allocatedSince(ids, before); // cost of taking the snapshots themselves
+        ids = threads.getAllThreadIds();
+        before = threads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < frames; i++) fr.render(from + (to - from) * i / frames);
+        return Math.max(0, allocatedSince(ids, before) - calib) / (double) frames;
+    }
+
+    // Bytes allocated since the snapshot by the threads alive now (ones started since count
+    // from zero; ones that exited in between are lost, so workers must outlive the run)
+    private long allocatedSince(long[] ids, long[] before) {
+        long[] now = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(now);
+        long sum = 0;
+        for (int i = 0; i < now.length; i++) {
+            if (bytes[i] < 0) continue; // exited meanwhile
+            long base = 0;
+            for (int j = 0; j < ids.length; j++) {
+                if (ids[j] == now[i]) base = Math.max(0, before[j]);
+            }
+            sum += bytes[i] - base;
+        }
+        return sum;
+    }
+
+    // Scene s (0 street, 1 fade, 2 slime) as a time range
+    static double sceneStart(int s) {
+        return s == 0 ? 0 : s == 1 ? FrameRenderer.T1 : FrameRenderer.T2;
+    }
+
+    static double sceneEnd(int s) {
+        return s == 0 ? FrameRenderer.T1 : s == 1 ? FrameRenderer.T2 : FrameRenderer.T3;
+    }
 
-            rr = clamp(rr + k);
-            gg = clamp(gg + k);
-            bb = clamp(bb + k);
+    static void main(String[] args) {
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 240;
+        int warmup = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
 
-            pix[idx] = ARGB(a, rr, gg, bb);
+        AllocationMeter meter = new AllocationMeter();
+        FrameRenderer fr = new FrameRenderer(new Rasterizer(600, 600, new int[600 * 600], Rasterizer.OPAQUE));
+        fr.setBands(Integer.getInteger("slime.bands", Runtime.getRuntime().availableProcessors())); // as the window
+        boolean clean = true;
+        for (int s = 0; s < SCENES.length; s++) {
+            // Warm-up grows scratch buffers and lets the JIT settle before counting
+            meter.bytesPerFrame(fr, sceneStart(s), sceneEnd(s), warmup);
+            double b = meter.bytesPerFrame(fr, sceneStart(s), sceneEnd(s), frames);
+            System.out.printf(Locale.ROOT, "%-7s %10.1f bytes/frame%n", SCENES[s], b);
+            clean &= b == 0;
         }
+        if (!clean) System.exit(1);
     }
 }
\ No newline at end of file